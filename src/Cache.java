@@ -0,0 +1,986 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A write-back block cache between the file system and the disk, split
+// into segments so that threads using different blocks do not contend.
+// A block number hashes to one segment, and each segment has its own
+// lock, pages and replacement policy, chosen by name:
+//
+//   clock  the enhanced second-chance algorithm: the clock hand prefers
+//          a page that is neither referenced nor dirty, then one that is
+//          only dirty, clearing reference bits as it passes.
+//   2q     blocks enter a FIFO of recent pages, and move to an LRU list
+//          of frequent pages only when missed again soon after leaving
+//          it, so a scan through many blocks used once cannot push out
+//          inode, index and directory blocks used over and over.
+//
+// clock is the default. Only the policy in use is counted, so policies
+// are compared over two boots from copies of one disk image, one with each
+// -policy, running the same program after SysLib.iostat( report, true )
+// resets the counters and reading the hit rates from the next iostat.
+//
+// The pages are heap arrays, or with offHeap set, block-sized frames of
+// one direct ByteBuffer arena allocated outside the Java heap, so that a
+// cache of hundreds of megabytes adds nothing for the garbage collector
+// to scan or copy. Blocks are copied in and out of the arena in bulk.
+//
+// Dirty pages reach the disk when they are evicted, on sync( ) and on
+// flush( ), and in the background: the flusher thread writes back the
+// pages dirty for longer than ageLimit, and once more than dirtyHigh of
+// the pages are dirty, the oldest of them until only dirtyLow are, each
+// round in block order with one vectored command. Misses are read, and
+// pages written behind, without holding the segment lock.
+//
+// prefetch( ) reads blocks ahead of their use: it queues one vectored
+// disk read and returns, and the prefetcher thread caches the blocks
+// once the read is done. A reader of a block still in flight waits for
+// it instead of reading it again.
+//
+// A segment tracks each block a reader missed or a prefetch claimed
+// until the read is cached. Writing, evicting or writing past the cache
+// to the block meanwhile makes the read stale, and it is then returned
+// to the reader but not cached, as newer data may have reached the disk
+// before it.
+// A page written past the cache by a large writev( ) stays pinned, like
+// one written behind, until that write is done.
+public class Cache {
+    public static final String CLOCK = "clock";
+    public static final String TWO_QUEUE = "2q";
+    private static final int HIT = -1; // lookup( ) found the block cached
+
+    private int blockSize;
+    private String policyName;
+    private ByteBuffer arena; // the frames of every segment, if off heap
+    private Segment segments[];
+    private ConcurrentHashMap<Integer, Prefetch> inflight
+	= new ConcurrentHashMap<Integer, Prefetch>( );
+    private Prefetcher prefetcher;
+    private long prefetched; // blocks read ahead
+
+    private static final int flushInterval = 200; // ms between flusher rounds
+    private static final int ageLimit = 1000;     // ms a page may stay dirty
+    private static final int dirtyHigh = 50;      // % of pages dirty that wakes the flusher
+    private static final int dirtyLow = 25;       // % of pages it leaves dirty
+    private AtomicInteger dirtyPages = new AtomicInteger( );
+    private Flusher flusher;
+    private Object flushing = new Object( ); // held by write-behind and sync
+    private long writtenBehind; // blocks written back by the flusher
+
+    private class Entry {
+	public static final int INVALID = -1;
+	public boolean reference;
+	public boolean dirty;
+	public int frame;          // the disk block held, or INVALID
+	public long dirtySince;    // when the page became dirty
+	public int version;        // changes whenever the page is written
+	public boolean writing;    // being written behind
+
+	public Entry( ) {
+	    reference = false;
+	    dirty = false;
+	    frame = INVALID;
+	}
+    }
+
+    // A block missing from a segment while threads read it from the disk
+    // or write it there without caching it. Any change to the block
+    // bumps version, so that a read begun before knows it may be stale.
+    private class Miss {
+	int readers;
+	int writers;
+	int version;
+    }
+
+    // Decides which page of a segment to evict. The segment reports
+    // every hit, load and eviction, holding its monitor. A page being
+    // written behind is chosen only when no other page can be.
+    private abstract class Policy {
+	abstract void referenced( int page );
+	abstract void loaded( int page, int blockId );
+	abstract int victim( );
+	abstract void evicted( int page, int blockId );
+	abstract void cleared( );
+    }
+
+    private class ClockPolicy extends Policy {
+	private Entry pageTable[];
+	private int victim;            // the clock hand
+
+	ClockPolicy( Entry pageTable[] ) {
+	    this.pageTable = pageTable;
+	    victim = pageTable.length - 1;
+	}
+
+	void referenced( int page ) {
+	    pageTable[page].reference = true;
+	}
+
+	void loaded( int page, int blockId ) {
+	    pageTable[page].reference = true;
+	}
+
+	// The first sweep looks for a page neither referenced nor dirty,
+	// the second for one not referenced, clearing reference bits as it
+	// goes, so a second pair of sweeps always finds a victim.
+	int victim( ) {
+	    for ( int round = 0; round < 4; round++ ) {
+		for ( int i = 0; i < pageTable.length; i++ ) {
+		    victim = ( victim + 1 ) % pageTable.length;
+		    Entry entry = pageTable[victim];
+		    if ( entry.writing )
+			continue;
+		    if ( !entry.reference
+			 && ( !entry.dirty || round % 2 == 1 ) )
+			return victim;
+		    if ( round % 2 == 1 )
+			entry.reference = false;
+		}
+	    }
+	    return victim;
+	}
+
+	void evicted( int page, int blockId ) {
+	}
+
+	void cleared( ) {
+	    for ( int i = 0; i < pageTable.length; i++ )
+		pageTable[i].reference = false;
+	}
+    }
+
+    // 2Q with a FIFO of recent pages holding up to a quarter of the
+    // segment, and a ghost list remembering the blocks of the last
+    // pages evicted from it, as many as half the segment.
+    private class TwoQueuePolicy extends Policy {
+	private LinkedHashSet<Integer> recent = new LinkedHashSet<Integer>( );
+	private LinkedHashSet<Integer> frequent = new LinkedHashSet<Integer>( );
+	private LinkedHashSet<Integer> ghosts = new LinkedHashSet<Integer>( );
+	private int recentPages;
+	private int ghostBlocks;
+	private Entry pageTable[];
+
+	TwoQueuePolicy( Entry pageTable[] ) {
+	    this.pageTable = pageTable;
+	    int pages = pageTable.length;
+	    recentPages = Math.max( 1, pages / 4 );
+	    ghostBlocks = Math.max( 1, pages / 2 );
+	}
+
+	void referenced( int page ) {
+	    if ( frequent.remove( page ) )
+		frequent.add( page ); // now the most recently used
+	}
+
+	void loaded( int page, int blockId ) {
+	    if ( ghosts.remove( blockId ) )
+		frequent.add( page ); // missed again: worth keeping
+	    else
+		recent.add( page );
+	}
+
+	int victim( ) {
+	    int page = -1;
+	    if ( recent.size( ) > recentPages || frequent.isEmpty( ) )
+		page = oldest( recent );
+	    if ( page == -1 )
+		page = oldest( frequent );
+	    if ( page == -1 )
+		page = oldest( recent );
+	    if ( page == -1 ) // all being written behind
+		page = recent.isEmpty( ) ? frequent.iterator( ).next( )
+		    : recent.iterator( ).next( );
+	    return page;
+	}
+
+	// the first page of a queue not being written behind, or -1
+	private int oldest( LinkedHashSet<Integer> queue ) {
+	    for ( Integer page : queue )
+		if ( !pageTable[page].writing )
+		    return page;
+	    return -1;
+	}
+
+	void evicted( int page, int blockId ) {
+	    if ( !recent.remove( page ) ) {
+		frequent.remove( page );
+		return;
+	    }
+	    ghosts.add( blockId );
+	    if ( ghosts.size( ) > ghostBlocks )
+		ghosts.remove( ghosts.iterator( ).next( ) );
+	}
+
+	void cleared( ) {
+	    recent.clear( );
+	    frequent.clear( );
+	    ghosts.clear( );
+	}
+    }
+
+    // A dirty page on its way to the disk.
+    private class Dirty {
+	Segment segment;
+	int page;
+	int blockId;
+	long since;
+	int version;
+	byte data[];
+
+	Dirty( Segment segment, int page, Entry entry ) {
+	    this.segment = segment;
+	    this.page = page;
+	    blockId = entry.frame;
+	    since = entry.dirtySince;
+	    version = entry.version;
+	}
+    }
+
+    // Writes dirty pages back every flushInterval ms, and as soon as
+    // more than dirtyHigh of the pages are dirty.
+    private class Flusher extends Thread {
+	synchronized void wake( ) {
+	    notify( );
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		synchronized ( this ) {
+		    try {
+			wait( flushInterval );
+		    } catch ( InterruptedException e ) {
+			SysLib.cerr( e.toString( ) + "\n" );
+		    }
+		}
+		writeBehind( );
+	    }
+	}
+    }
+
+    // A vectored read issued by prefetch( ).
+    private class Prefetch {
+	int blocks[];
+	int tickets[]; // from Segment.expect( )
+	byte data[];
+	DiskRequest request;
+	boolean done = false;
+
+	synchronized void finish( ) {
+	    done = true;
+	    notifyAll( );
+	}
+
+	synchronized void await( ) {
+	    while ( !done ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	}
+    }
+
+    // Caches the blocks of each prefetch once its read is done, in the
+    // order they were issued.
+    private class Prefetcher extends Thread {
+	private LinkedList<Prefetch> queue = new LinkedList<Prefetch>( );
+
+	synchronized void add( Prefetch prefetch ) {
+	    queue.add( prefetch );
+	    notify( );
+	}
+
+	private synchronized Prefetch next( ) {
+	    while ( queue.isEmpty( ) ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	    return queue.removeFirst( );
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		Prefetch prefetch = next( );
+		prefetch.request.waitFor( );
+		for ( int i = 0; i < prefetch.blocks.length; i++ ) {
+		    int blockId = prefetch.blocks[i];
+		    segmentOf( blockId ).fill( blockId, prefetch.data,
+					       i * blockSize,
+					       prefetch.tickets[i] );
+		    inflight.remove( blockId, prefetch );
+		}
+		prefetch.finish( );
+	    }
+	}
+    }
+
+    // One independently locked part of the cache. Every method runs
+    // with the segment's monitor held.
+    private class Segment {
+	private Vector<byte[]> pages;  // the cached blocks, on the heap
+	private ByteBuffer frames;     // or this segment's slice of the arena
+	private Entry pageTable[];     // what each page holds
+	private HashMap<Integer, Integer> pageOf
+	    = new HashMap<Integer, Integer>( );
+	private HashMap<Integer, Miss> missed    // blocks read or written
+	    = new HashMap<Integer, Miss>( );     // past the cache
+	private Policy policy;
+	private long hits;             // reads served from the cache
+	private long misses;           // reads that went to the disk
+
+	Segment( int cacheBlocks, ByteBuffer frames ) {
+	    this.frames = frames;
+	    if ( frames == null )
+		pages = new Vector<byte[]>( );
+	    pageTable = new Entry[ cacheBlocks ];
+	    for ( int i = 0; i < cacheBlocks; i++ ) {
+		if ( frames == null )
+		    pages.addElement( new byte[ blockSize ] );
+		pageTable[i] = new Entry( );
+	    }
+	    if ( policyName.equals( TWO_QUEUE ) )
+		policy = new TwoQueuePolicy( pageTable );
+	    else
+		policy = new ClockPolicy( pageTable );
+	}
+
+	private void copyOut( int page, byte buffer[], int offset ) {
+	    if ( frames == null ) {
+		System.arraycopy( pages.elementAt( page ), 0,
+				  buffer, offset, blockSize );
+		return;
+	    }
+	    frames.position( page * blockSize );
+	    frames.get( buffer, offset, blockSize );
+	}
+
+	private void copyIn( int page, byte data[], int offset ) {
+	    if ( frames == null ) {
+		System.arraycopy( data, offset, pages.elementAt( page ), 0,
+				  blockSize );
+		return;
+	    }
+	    frames.position( page * blockSize );
+	    frames.put( data, offset, blockSize );
+	}
+
+	// the content of a page: the page itself on the heap, else a copy
+	private byte[] contentOf( int page ) {
+	    if ( frames == null )
+		return pages.elementAt( page );
+	    byte content[] = new byte[ blockSize ];
+	    copyOut( page, content, 0 );
+	    return content;
+	}
+
+	private int findFreePage( ) {
+	    for ( int i = 0; i < pageTable.length; i++ )
+		if ( pageTable[i].frame == Entry.INVALID )
+		    return i;
+	    return -1;
+	}
+
+	private void markDirty( int page ) {
+	    Entry entry = pageTable[page];
+	    entry.version++;
+	    if ( !entry.dirty ) {
+		entry.dirty = true;
+		entry.dirtySince = System.currentTimeMillis( );
+		if ( dirtyPages.incrementAndGet( ) > highWatermark( ) )
+		    flusher.wake( );
+	    }
+	}
+
+	private void markClean( int page ) {
+	    if ( pageTable[page].dirty ) {
+		pageTable[page].dirty = false;
+		dirtyPages.decrementAndGet( );
+	    }
+	}
+
+	private void writeBack( int page ) {
+	    Entry entry = pageTable[page];
+	    if ( entry.frame != Entry.INVALID && entry.dirty ) {
+		SysLib.rawwrite( entry.frame, contentOf( page ) );
+		markClean( page );
+	    }
+	}
+
+	// finds a page for blockId, writing back the page it evicts
+	// returns -1 after waiting for the victim to be written behind,
+	// when the caller must start over as the segment may have changed
+	private int allocatePage( int blockId ) {
+	    int page = findFreePage( );
+	    if ( page == -1 ) {
+		page = policy.victim( );
+		if ( pageTable[page].writing ) {
+		    // writing it now could overtake the older copy in flight
+		    try {
+			wait( );
+		    } catch ( InterruptedException e ) {
+			SysLib.cerr( e.toString( ) + "\n" );
+		    }
+		    return -1;
+		}
+		writeBack( page );
+		changed( pageTable[page].frame );
+		pageOf.remove( pageTable[page].frame );
+		policy.evicted( page, pageTable[page].frame );
+	    }
+	    pageTable[page].frame = blockId;
+	    pageOf.put( blockId, page );
+	    policy.loaded( page, blockId );
+	    return page;
+	}
+
+	private Miss missOf( int blockId ) {
+	    Miss miss = missed.get( blockId );
+	    if ( miss == null ) {
+		miss = new Miss( );
+		missed.put( blockId, miss );
+	    }
+	    return miss;
+	}
+
+	// makes the reads of blockId in progress stale
+	private void changed( int blockId ) {
+	    Miss miss = missed.get( blockId );
+	    if ( miss != null )
+		miss.version++;
+	}
+
+	private void release( int blockId, Miss miss ) {
+	    if ( miss.readers == 0 && miss.writers == 0 )
+		missed.remove( blockId );
+	}
+
+	// waits until no write past the cache to blockId is in flight
+	private void awaitWriters( int blockId ) {
+	    Miss miss;
+	    while ( ( miss = missed.get( blockId ) ) != null
+		    && miss.writers > 0 ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	}
+
+	synchronized boolean contains( int blockId ) {
+	    return pageOf.containsKey( blockId );
+	}
+
+	// copies the cached blockId into buffer at offset and returns HIT,
+	// or else records a read of the block from the disk, and returns
+	// the ticket to pass to fill( ) or forget( ) once it is done
+	synchronized int lookup( int blockId, byte buffer[], int offset ) {
+	    Integer page = pageOf.get( blockId );
+	    if ( page == null ) {
+		misses++;
+		Miss miss = missOf( blockId );
+		miss.readers++;
+		return miss.version;
+	    }
+	    copyOut( page, buffer, offset );
+	    policy.referenced( page );
+	    hits++;
+	    return HIT;
+	}
+
+	// caches blockId as just read from the disk into buffer at offset,
+	// for the read lookup( ) gave ticket to, unless a writer cached it
+	// meanwhile, whose data then wins, or the read is stale
+	synchronized void fill( int blockId, byte buffer[], int offset,
+				int ticket ) {
+	    Miss miss = missed.get( blockId );
+	    boolean current = miss.writers == 0 && miss.version == ticket;
+	    miss.readers--;
+	    release( blockId, miss );
+	    int page;
+	    do {
+		Integer cached = pageOf.get( blockId );
+		if ( cached != null ) {
+		    copyOut( cached, buffer, offset );
+		    return;
+		}
+		if ( !current )
+		    return;
+	    } while ( ( page = allocatePage( blockId ) ) == -1 );
+	    copyIn( page, buffer, offset );
+	}
+
+	// ends a read lookup( ) recorded without caching what it read
+	synchronized void forget( int blockId ) {
+	    Miss miss = missed.get( blockId );
+	    miss.readers--;
+	    release( blockId, miss );
+	}
+
+	// records a read of blockId ahead of its use, as lookup( ) does a
+	// miss, and returns its ticket, or HIT if the block is cached
+	synchronized int expect( int blockId ) {
+	    if ( pageOf.containsKey( blockId ) )
+		return HIT;
+	    Miss miss = missOf( blockId );
+	    miss.readers++;
+	    return miss.version;
+	}
+
+	// caches data at offset as the new, dirty content of blockId
+	synchronized void install( int blockId, byte data[], int offset ) {
+	    Integer page;
+	    awaitWriters( blockId ); // so the older data cannot land last
+	    changed( blockId );
+	    while ( ( page = pageOf.get( blockId ) ) == null )
+		if ( allocatePage( blockId ) == -1 )
+		    continue;
+	    policy.referenced( page );
+	    copyIn( page, data, offset );
+	    markDirty( page );
+	}
+
+	// replaces a cached copy of blockId with data the caller is
+	// writing to the disk itself, and pins it until landed( ) is
+	// called with the version returned, or -1 if it was not cached
+	synchronized int refresh( int blockId, byte data[], int offset ) {
+	    Integer page;
+	    awaitWriters( blockId );
+	    while ( ( page = pageOf.get( blockId ) ) != null
+		    && pageTable[page].writing ) {
+		try {
+		    wait( ); // until the older copy in flight has landed
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	    if ( page == null ) {
+		missOf( blockId ).writers++;
+		changed( blockId );
+		return -1;
+	    }
+	    copyIn( page, data, offset );
+	    markDirty( page ); // until the data is on the disk
+	    pageTable[page].writing = true;
+	    return pageTable[page].version;
+	}
+
+	// unpins blockId once the write refresh( ) returned version for
+	// has reached the disk
+	synchronized void landed( int blockId, int version ) {
+	    Integer page = pageOf.get( blockId );
+	    if ( version == -1 || page == null ) { // or flushed since
+		Miss miss = missed.get( blockId );
+		miss.writers--;
+		miss.version++;
+		release( blockId, miss );
+	    } else {
+		pageTable[page].writing = false;
+		if ( pageTable[page].version == version )
+		    markClean( page );
+	    }
+	    notifyAll( );
+	}
+
+	// adds the dirty pages to dirty, with their data if clean is set,
+	// in which case they are marked clean
+	synchronized void collectDirty( ArrayList<Dirty> dirty,
+					boolean clean ) {
+	    for ( int i = 0; i < pageTable.length; i++ ) {
+		Entry entry = pageTable[i];
+		if ( entry.frame == Entry.INVALID || !entry.dirty )
+		    continue;
+		Dirty page = new Dirty( this, i, entry );
+		if ( clean ) {
+		    page.data = contentOf( i );
+		    markClean( i );
+		}
+		dirty.add( page );
+	    }
+	}
+
+	// copies the data of a page collected dirty, unless it has been
+	// evicted or written back since
+	synchronized boolean copy( Dirty dirty ) {
+	    Entry entry = pageTable[dirty.page];
+	    if ( entry.frame != dirty.blockId || !entry.dirty
+		 || entry.writing ) // pinned by a write past the cache
+		return false;
+	    dirty.version = entry.version;
+	    dirty.data = new byte[ blockSize ];
+	    copyOut( dirty.page, dirty.data, 0 );
+	    entry.writing = true;
+	    return true;
+	}
+
+	// marks a page clean after its copy reached the disk, unless it
+	// has been written again meanwhile
+	synchronized void cleaned( Dirty dirty ) {
+	    Entry entry = pageTable[dirty.page];
+	    entry.writing = false;
+	    if ( entry.version == dirty.version )
+		markClean( dirty.page );
+	    notifyAll( );
+	}
+
+	void invalidate( ) {
+	    for ( int i = 0; i < pageTable.length; i++ ) {
+		if ( pageTable[i].writing ) // a write past the cache is
+		    missOf( pageTable[i].frame ).writers++; // still in flight
+		pageTable[i].writing = false;
+		pageTable[i].frame = Entry.INVALID;
+	    }
+	    pageOf.clear( );
+	    policy.cleared( );
+	}
+    }
+
+    public static boolean isPolicy( String name ) {
+	return name.equals( CLOCK ) || name.equals( TWO_QUEUE );
+    }
+
+    public Cache( int blockSize, int cacheBlocks ) {
+	this( blockSize, cacheBlocks, 1, CLOCK, false );
+    }
+
+    // cacheBlocks pages spread over up to segmentCount segments, each
+    // replacing pages with the named policy, and kept off the heap if
+    // offHeap is set
+    public Cache( int blockSize, int cacheBlocks, int segmentCount,
+		  String policy, boolean offHeap ) {
+	this.blockSize = blockSize;
+	policyName = isPolicy( policy ) ? policy : CLOCK;
+	if ( cacheBlocks < 1 )
+	    cacheBlocks = 1;
+	if ( offHeap && cacheBlocks > Integer.MAX_VALUE / blockSize ) {
+	    cacheBlocks = Integer.MAX_VALUE / blockSize;
+	    SysLib.cerr( "threadOS: the cache arena holds at most " +
+			 cacheBlocks + " blocks\n" );
+	}
+	if ( offHeap )
+	    arena = ByteBuffer.allocateDirect( cacheBlocks * blockSize );
+	segmentCount = Math.max( 1, Math.min( segmentCount, cacheBlocks ) );
+	segments = new Segment[ segmentCount ];
+	int first = 0; // first frame of the next segment
+	for ( int i = 0; i < segmentCount; i++ ) {
+	    int pages = cacheBlocks / segmentCount
+		+ ( i < cacheBlocks % segmentCount ? 1 : 0 );
+	    ByteBuffer frames = null;
+	    if ( offHeap ) {
+		ByteBuffer slice = arena.duplicate( );
+		slice.position( first * blockSize );
+		slice.limit( ( first + pages ) * blockSize );
+		frames = slice.slice( );
+	    }
+	    segments[i] = new Segment( pages, frames );
+	    first += pages;
+	}
+	prefetcher = new Prefetcher( );
+	prefetcher.setDaemon( true );
+	prefetcher.start( );
+	flusher = new Flusher( );
+	flusher.setDaemon( true );
+	flusher.start( );
+    }
+
+    private int highWatermark( ) {
+	return getCacheBlocks( ) * dirtyHigh / 100;
+    }
+
+    // One round of the flusher: picks the pages dirty for too long, and
+    // the oldest ones over the low watermark once past the high one,
+    // then writes them back in block order with one command.
+    private void writeBehind( ) {
+	synchronized ( flushing ) {
+	    int dirtyCount = dirtyPages.get( );
+	    if ( dirtyCount > 0 )
+		writeBehind( dirtyCount );
+	}
+    }
+
+    private void writeBehind( int dirtyCount ) {
+	ArrayList<Dirty> dirty = new ArrayList<Dirty>( );
+	for ( int i = 0; i < segments.length; i++ )
+	    segments[i].collectDirty( dirty, false );
+	Collections.sort( dirty, new Comparator<Dirty>( ) {
+		public int compare( Dirty a, Dirty b ) {
+		    return Long.compare( a.since, b.since );
+		}
+	    } );
+	int excess = ( dirtyCount > highWatermark( ) )
+	    ? dirtyCount - getCacheBlocks( ) * dirtyLow / 100 : 0;
+	long old = System.currentTimeMillis( ) - ageLimit;
+	int count = 0;
+	while ( count < dirty.size( )
+		&& ( count < excess || dirty.get( count ).since <= old ) )
+	    count++;
+
+	ArrayList<Dirty> batch = new ArrayList<Dirty>( );
+	for ( int i = 0; i < count; i++ )
+	    if ( dirty.get( i ).segment.copy( dirty.get( i ) ) )
+		batch.add( dirty.get( i ) );
+	if ( batch.isEmpty( ) )
+	    return;
+	writeDirty( batch );
+	for ( int i = 0; i < batch.size( ); i++ )
+	    batch.get( i ).segment.cleaned( batch.get( i ) );
+	synchronized ( this ) {
+	    writtenBehind += batch.size( );
+	}
+    }
+
+    // writes the data of the pages to their blocks in block order, with
+    // one vectored command
+    private void writeDirty( ArrayList<Dirty> dirty ) {
+	Collections.sort( dirty, new Comparator<Dirty>( ) {
+		public int compare( Dirty a, Dirty b ) {
+		    return a.blockId - b.blockId;
+		}
+	    } );
+	int blocks[] = new int[ dirty.size( ) ];
+	byte data[] = new byte[ dirty.size( ) * blockSize ];
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    blocks[i] = dirty.get( i ).blockId;
+	    System.arraycopy( dirty.get( i ).data, 0,
+			      data, i * blockSize, blockSize );
+	}
+	SysLib.rawwritev( blocks, data );
+    }
+
+    public int getCacheBlocks( ) {
+	int blocks = 0;
+	for ( int i = 0; i < segments.length; i++ )
+	    blocks += segments[i].pageTable.length;
+	return blocks;
+    }
+
+    public int getSegments( ) {
+	return segments.length;
+    }
+
+    // Describes the policy and how often reads hit the cache with it.
+    public String report( ) {
+	long hits = 0;
+	long misses = 0;
+	for ( int i = 0; i < segments.length; i++ ) {
+	    synchronized ( segments[i] ) {
+		hits += segments[i].hits;
+		misses += segments[i].misses;
+	    }
+	}
+	long reads = hits + misses;
+	long ahead;
+	long behind;
+	synchronized ( this ) {
+	    ahead = prefetched;
+	    behind = writtenBehind;
+	}
+	return "cache: " + policyName + ", " + getCacheBlocks( ) +
+	    " blocks " + ( arena != null ? "off heap " : "" ) + "in " +
+	    segments.length + " segments, " + reads +
+	    " block reads, " + hits + " hits (" +
+	    ( reads == 0 ? 0 : hits * 1000 / reads ) / 10.0 + "%), " +
+	    ahead + " blocks prefetched, " + behind +
+	    " written behind\n";
+    }
+
+    public void resetStats( ) {
+	synchronized ( this ) {
+	    prefetched = 0;
+	    writtenBehind = 0;
+	}
+	for ( int i = 0; i < segments.length; i++ ) {
+	    synchronized ( segments[i] ) {
+		segments[i].hits = 0;
+		segments[i].misses = 0;
+	    }
+	}
+    }
+
+    // spreads neighbouring blocks over the segments
+    private Segment segmentOf( int blockId ) {
+	int hash = blockId * 0x9e3779b1;
+	hash ^= hash >>> 16;
+	return segments[ ( hash & 0x7fffffff ) % segments.length ];
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+	awaitPrefetch( blockId );
+	Segment segment = segmentOf( blockId );
+	int ticket = segment.lookup( blockId, buffer, 0 );
+	if ( ticket == HIT )
+	    return true;
+	if ( SysLib.rawread( blockId, buffer ) < 0 ) {
+	    segment.forget( blockId );
+	    return false;
+	}
+	segment.fill( blockId, buffer, 0, ticket );
+	return true;
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+	    return false;
+	}
+	segmentOf( blockId ).install( blockId, buffer, 0 );
+	return true;
+    }
+
+    // Starts reading the blocks that are neither cached nor in flight,
+    // with one vectored command, and returns without waiting for it.
+    // Each block is claimed in inflight before the segment checks it is
+    // not cached and records the read, so a write either finds the claim
+    // or comes after the check and makes the read stale.
+    public void prefetch( int blockIds[] ) {
+	Prefetch prefetch = new Prefetch( );
+	int blocks[] = new int[ blockIds.length ];
+	int tickets[] = new int[ blockIds.length ];
+	int count = 0;
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    if ( blockIds[i] < 0
+		 || inflight.putIfAbsent( blockIds[i], prefetch ) != null )
+		continue;
+	    int ticket = segmentOf( blockIds[i] ).expect( blockIds[i] );
+	    if ( ticket == HIT ) {
+		inflight.remove( blockIds[i], prefetch );
+		continue;
+	    }
+	    tickets[count] = ticket;
+	    blocks[count++] = blockIds[i];
+	}
+	if ( count == 0 ) {
+	    prefetch.finish( ); // for readers that saw a claim dropped
+	    return;
+	}
+
+	prefetch.blocks = Arrays.copyOf( blocks, count );
+	prefetch.tickets = Arrays.copyOf( tickets, count );
+	prefetch.data = new byte[ count * blockSize ];
+	prefetch.request = Kernel.rawreadvAsync( prefetch.blocks,
+						 prefetch.data );
+	if ( prefetch.request == null ) { // a wrong block number
+	    for ( int i = 0; i < count; i++ ) {
+		segmentOf( prefetch.blocks[i] ).forget( prefetch.blocks[i] );
+		inflight.remove( prefetch.blocks[i], prefetch );
+	    }
+	    prefetch.finish( );
+	    return;
+	}
+	synchronized ( this ) {
+	    prefetched += count;
+	}
+	prefetcher.add( prefetch );
+    }
+
+    // waits until blockId is cached if a prefetch is reading it
+    private void awaitPrefetch( int blockId ) {
+	Prefetch prefetch = inflight.get( blockId );
+	if ( prefetch != null )
+	    prefetch.await( );
+    }
+
+    // Reads blockIds[i] into buffer[i * blockSize]. The blocks missing
+    // from the cache are read with one vectored disk command, and kept
+    // unless they would take more than half of the cache.
+    public boolean readv( int blockIds[], byte buffer[] ) {
+	int missing[] = new int[ blockIds.length ];
+	int tickets[] = new int[ blockIds.length ];
+	int misses = 0;
+	for ( int i = 0; i < blockIds.length; i++ )
+	    awaitPrefetch( blockIds[i] );
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    int ticket = segmentOf( blockIds[i] ).lookup( blockIds[i], buffer,
+							  i * blockSize );
+	    if ( ticket != HIT ) {
+		tickets[misses] = ticket;
+		missing[misses++] = i;
+	    }
+	}
+	if ( misses == 0 )
+	    return true;
+
+	int blocks[] = new int[ misses ];
+	for ( int i = 0; i < misses; i++ )
+	    blocks[i] = blockIds[missing[i]];
+	byte data[] = new byte[ misses * blockSize ];
+	boolean read = SysLib.rawreadv( blocks, data ) >= 0;
+	boolean keep = read && misses <= getCacheBlocks( ) / 2;
+	for ( int i = 0; i < misses; i++ ) {
+	    if ( read )
+		System.arraycopy( data, i * blockSize,
+				  buffer, missing[i] * blockSize, blockSize );
+	    if ( keep )
+		segmentOf( blocks[i] ).fill( blocks[i], buffer,
+					     missing[i] * blockSize,
+					     tickets[i] );
+	    else
+		segmentOf( blocks[i] ).forget( blocks[i] );
+	}
+	return read;
+    }
+
+    // Writes buffer[i * blockSize] to blockIds[i]. A vector that would
+    // take more than half of the cache goes straight to the disk in one
+    // command instead, refreshing whatever copies the cache holds.
+    public boolean writev( int blockIds[], byte buffer[] ) {
+	if ( blockIds.length <= getCacheBlocks( ) / 2 ) {
+	    for ( int i = 0; i < blockIds.length; i++ )
+		segmentOf( blockIds[i] ).install( blockIds[i], buffer,
+						  i * blockSize );
+	    return true;
+	}
+	int versions[] = new int[ blockIds.length ];
+	for ( int i = 0; i < blockIds.length; i++ )
+	    versions[i] = segmentOf( blockIds[i] ).refresh( blockIds[i], buffer,
+							    i * blockSize );
+	boolean written = SysLib.rawwritev( blockIds, buffer ) >= 0;
+	for ( int i = 0; i < blockIds.length; i++ )
+	    segmentOf( blockIds[i] ).landed( blockIds[i], versions[i] );
+	return written;
+    }
+
+    // Writes every dirty page back, in block order and in one command.
+    // All segments stay locked until the write is done, so no page can
+    // be evicted clean and read back before its data reaches the disk,
+    // and no write-behind is in flight to be overtaken.
+    public void sync( ) {
+	synchronized ( flushing ) {
+	    syncFrom( 0, new ArrayList<Dirty>( ), false );
+	}
+    }
+
+    // writes every dirty page back, then empties the cache
+    public void flush( ) {
+	for ( Prefetch prefetch : inflight.values( ) )
+	    prefetch.await( );
+	synchronized ( flushing ) {
+	    syncFrom( 0, new ArrayList<Dirty>( ), true );
+	}
+    }
+
+    // locks segments s and up in order, then writes back what they hold
+    private void syncFrom( int s, ArrayList<Dirty> dirty,
+			   boolean invalidate ) {
+	if ( s < segments.length ) {
+	    synchronized ( segments[s] ) {
+		segments[s].collectDirty( dirty, true );
+		syncFrom( s + 1, dirty, invalidate );
+		if ( invalidate )
+		    segments[s].invalidate( );
+	    }
+	    return;
+	}
+	if ( !dirty.isEmpty( ) )
+	    writeDirty( dirty );
+    }
+}
@@ -3,6 +3,7 @@
 	
 	private int fsize[]; // each element stores a different file size
 	private char fnames[][]; // each element stores a different file name
+	private volatile boolean dirty; // changed since last written to disk
 	
 	
 	public Directory(int maxInumber) {
@@ -46,7 +47,8 @@
 		for (int i = 0; i < fsize.length; i++)
 		{
 			SysLib.int2bytes(fsize[i], data, fsizeOffset);
-			System.arraycopy(fnames[i], 0, data, fnamesOffset, fnames[i].length);
+			byte[] name = new String(fnames[i], 0, fsize[i]).getBytes(); // as bytes2directory decodes it
+			System.arraycopy(name, 0, data, fnamesOffset, Math.min(name.length, maxCharBytes));
 			fsizeOffset += 4;
 			fnamesOffset += maxCharBytes;
 		}
@@ -57,12 +59,19 @@
 	// filename is the name of a file to be created.
 	// allocates a new inode number for this filname
 	public short ialloc(String filename) {
-		for (short i = 0; i < fsize.length; i++)
+		return ialloc(filename, (short)0);
+	}
+	
+	// allocates the first free inumber from goal on, wrapping around to 0
+	public short ialloc(String filename, short goal) {
+		for (int n = 0; n < fsize.length; n++)
 		{
+			short i = (short)((goal + n) % fsize.length);
 			if (fsize[i] == 0)
 			{
 				fsize[i] = filename.length();
 				filename.getChars(0, fsize[i], fnames[i], 0);
+				dirty = true;
 				return i;
 			}
 		}
@@ -76,12 +85,20 @@
 		if(fsize[iNumber] > 0)
 		{
 			fsize[iNumber] = 0;
+			dirty = true;
 			return true;
 		}
 		return false;
 		
 	}
 	
+	// returns true if the directory changed since the last call
+	public synchronized boolean testAndResetDirty() {
+		boolean wasDirty = dirty;
+		dirty = false;
+		return wasDirty;
+	}
+	
 	// returns the inumber corresponding to this filename
 	public short namei(String filename) {
 		for (short i = 0; i < fnames.length; i++) 
@@ -1,165 +1,575 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
 
 public class Disk extends Thread {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
-    private final int transferTime = 20;
-    private final int delayPerTrack = 1;
+    public static final int queueDepth = 16; // max queued requests
+    private final int trackSize;
+    private final int transferTime;
+    private final int delayPerTrack;
     private int diskSize;
+    private String fileName;        // the backing file
 
-    private byte data[];
+    private byte data[];            // the whole image, in heap mode
+    private long dirty[];           // blocks written since the last sync
+
+    // In mapped mode, blocks live in regions of the DISK file mapped into
+    // memory instead of in data[], so the image is not bounded by the heap.
+    private static final long regionSize = 1L << 30;
+    private RandomAccessFile file;
+    private MappedByteBuffer regions[];
+    private SyncFlusher flusher;
 
-    private int command;
     private final int IDLE = 0;
     private final int READ = 1;
     private final int WRITE = 2;
     private final int SYNC = 3;
-    private boolean readyBuffer;
 
-    private byte[] buffer;
+    // One slot of the request queue. A slot is free while its command
+    // is IDLE, and busy while the disk is serving it.
+    private class Request {
+	int command = IDLE;
+	int blockId;     // the lowest block of a vector
+	int blocks[];    // a vector of blocks, or null for blockId alone
+	int offsets[];   // where each block of the vector sits in buffer
+	byte[] buffer;
+	DiskRequest handle;
+	long order; // arrival order, so that SYNC acts as a barrier
+	long queuedAt; // System.nanoTime( ) when queued
+	boolean busy = false;
+    }
+
+    private Request queue[];
+    private int outstanding;  // requests queued or being served
+    private long arrivals;
+    private DiskStats stats = new DiskStats( );
+    private int run[];        // slots served together by one seek
+
     private int currentBlockId;
     private int targetBlockId;
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, DiskProfile.DEFAULT, false, "DISK" );
+    }
+
+    public Disk( int totalBlocks, DiskProfile profile, boolean mapped,
+		 String fileName ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.fileName = fileName;
+	trackSize = profile.trackSize;
+	transferTime = profile.transferTime;
+	delayPerTrack = profile.delayPerTrack;
+	if ( !mapped && (long)diskSize * blockSize > Integer.MAX_VALUE ) {
+	    SysLib.cerr( "threadOS: " + fileName +
+			 " too large for the heap, mapping it\n" );
+	    mapped = true;
+	}
+	queue = new Request[ queueDepth ];
+	for ( int i = 0; i < queueDepth; i++ )
+	    queue[i] = new Request( );
+	arrivals = 0;
+	run = new int[ queueDepth ];
 	currentBlockId = 0;
 	targetBlockId = 0;
+	if ( mapped && !map( ) ) {
+	    // the heap image is the only other place the blocks can live
+	    if ( (long)diskSize * blockSize > Integer.MAX_VALUE ) {
+		SysLib.cerr( "threadOS: cannot map " + fileName +
+			     ", and it is too large for the heap\n" );
+		System.exit( 1 );
+	    }
+	    SysLib.cerr( "threadOS: cannot map " + fileName +
+			 ", loading it into the heap\n" );
+	    mapped = false;
+	}
+	if ( !mapped )
+	    load( );
+    }
+
+    // Reads the DISK file into data[]. The file stays open so that syncs
+    // can write back just the dirty blocks at their positions.
+    private void load( ) {
+	data = new byte[ diskSize * blockSize ];
+	dirty = new long[ ( diskSize + 63 ) / 64 ];
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
-	    int readableSize = ( ifstream.available( ) < data.length ) ?
-		ifstream.available( ) : data.length; 
-	    ifstream.read( data, 0, readableSize );
-	    ifstream.close( );
-	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    if ( !new File( fileName ).exists( ) )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    file = new RandomAccessFile( fileName, "rw" );
+	    int readableSize = ( file.length( ) < data.length ) ?
+		(int)file.length( ) : data.length; 
+	    file.readFully( data, 0, readableSize );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
-
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+    // Maps the DISK file, growing it to the disk size if needed. Nothing
+    // is read up front; the OS pages blocks in as they are accessed.
+    // Returns false, mapping nothing and leaving the file closed, if the
+    // file cannot be opened or mapped.
+    private boolean map( ) {
+	long size = (long)diskSize * blockSize;
+	try {
+	    if ( !new File( fileName ).exists( ) )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    file = new RandomAccessFile( fileName, "rw" );
+	    if ( file.length( ) < size )
+		file.setLength( size );
+	    FileChannel channel = file.getChannel( );
+	    regions = new MappedByteBuffer[ (int)( ( size + regionSize - 1 )
+						   / regionSize ) ];
+	    for ( int i = 0; i < regions.length; i++ ) {
+		long offset = i * regionSize;
+		regions[i] = channel.map( FileChannel.MapMode.READ_WRITE, offset,
+					  Math.min( regionSize, size - offset ) );
+	    }
+	    return true;
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    regions = null;
+	    try {
+		if ( file != null )
+		    file.close( );
+	    } catch ( IOException closing ) {
+		// it was never usable, nothing is lost
+	    }
+	    file = null;
 	    return false;
 	}
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    public int getDiskSize( ) {
+	return diskSize;
+    }
+
+    public int getTrackSize( ) {
+	return trackSize;
+    }
+
+    public DiskStats getStats( ) {
+	return stats;
+    }
+
+    // Queues a read and returns its handle, or null for a wrong blockId.
+    // The caller sleeps while the queue is full.
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+
+	if ( blockId < 0 || blockId >= diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return null;
+	}
+	return enqueue( READ, blockId, null, null, buffer, new DiskRequest( ) );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    // Queues a write and returns its handle, or null for a wrong blockId.
+    // The caller sleeps while the queue is full.
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    return null;
 	}
+	return enqueue( WRITE, blockId, null, null, buffer, new DiskRequest( ) );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    // Queues a read of all the given blocks as one command, and returns
+    // its handle or null for a wrong vector. Block blocks[i] is read into
+    // buffer[i * blockSize].
+    public synchronized DiskRequest readv( int blocks[], byte buffer[] ) {
+
+	if ( !validVector( blocks, buffer ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for readv\n" );
+	    return null;
+	}
+	return enqueue( READ, lowest( blocks ), blocks, null, buffer,
+			new DiskRequest( ) );
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
-	    return false;
+    // Queues a write of all the given blocks as one command, and returns
+    // its handle or null for a wrong vector. Block blocks[i] is written
+    // from buffer[i * blockSize].
+    public synchronized DiskRequest writev( int blocks[], byte buffer[] ) {
+
+	if ( !validVector( blocks, buffer ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for writev\n" );
+	    return null;
+	}
+	return enqueue( WRITE, lowest( blocks ), blocks, null, buffer,
+			new DiskRequest( ) );
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
+    private boolean validVector( int blocks[], byte buffer[] ) {
+	if ( blocks.length == 0 || buffer.length < blocks.length * blockSize )
 	    return false;
+	for ( int i = 0; i < blocks.length; i++ )
+	    if ( blocks[i] < 0 || blocks[i] >= diskSize )
+		return false;
+	return true;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
+    private static int lowest( int blocks[] ) {
+	int lowest = blocks[0];
+	for ( int i = 1; i < blocks.length; i++ )
+	    lowest = Math.min( lowest, blocks[i] );
+	return lowest;
+    }
+
+    // Queues a sync and returns its handle. A sync is served only after
+    // every request queued before it.
+    public synchronized DiskRequest sync( ) {
+	return enqueue( SYNC, 0, null, null, null, new DiskRequest( ) );
+    }
+
+    // Queues part of a request spread over the disks of an array. Block
+    // blocks[i] moves to or from buffer[offsets[i]], and handle completes
+    // once every part of the request has been served. The caller
+    // validates the blocks.
+    synchronized void submit( boolean write, int blocks[], int offsets[],
+			      byte buffer[], DiskRequest handle ) {
+	enqueue( write ? WRITE : READ, lowest( blocks ), blocks, offsets,
+		 buffer, handle );
+    }
+
+    synchronized void submitSync( DiskRequest handle ) {
+	enqueue( SYNC, 0, null, null, null, handle );
+    }
+
+    private DiskRequest enqueue( int command, int blockId, int blocks[],
+				 int offsets[], byte buffer[],
+				 DiskRequest handle ) {
+	while ( true ) {
+	    for ( int slot = 0; slot < queueDepth; slot++ ) {
+		Request r = queue[slot];
+		if ( r.command == IDLE ) {
+		    r.command = command;
+		    r.blockId = blockId;
+		    r.blocks = blocks;
+		    r.offsets = offsets;
+		    r.buffer = buffer;
+		    r.order = arrivals++;
+		    r.queuedAt = System.nanoTime( );
+		    r.handle = handle;
+		    stats.queueDepth.record( ++outstanding );
+		    notifyAll( );
+		    return r.handle;
+		}
+	    }
+	    try {
+		wait( ); // the queue is full
+	    } catch ( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+    }
+
+    // Picks the next requests to serve with C-LOOK: the closest block at
+    // or beyond the head, wrapping around to the lowest block when none
+    // is left ahead. Queued requests on the blocks that follow it with
+    // the same command are merged into the same run. Returns the run size.
+    private int schedule( ) {
+	long barrier = Long.MAX_VALUE;
+	for ( int i = 0; i < queueDepth; i++ )
+	    if ( queue[i].command == SYNC && !queue[i].busy
+		 && queue[i].order < barrier )
+		barrier = queue[i].order;
+
+	int ahead = -1;
+	int lowest = -1;
+	for ( int i = 0; i < queueDepth; i++ ) {
+	    Request r = queue[i];
+	    if ( r.command == IDLE || r.command == SYNC || r.order > barrier )
+		continue;
+	    if ( r.blockId >= currentBlockId && before( r, ahead ) )
+		ahead = i;
+	    if ( before( r, lowest ) )
+		lowest = i;
+	}
+	int first = ( ahead != -1 ) ? ahead : lowest;
+	if ( first == -1 ) {
+	    if ( barrier == Long.MAX_VALUE )
+		return 0;
+	    for ( int i = 0; i < queueDepth; i++ )
+		if ( queue[i].command == SYNC && !queue[i].busy
+		     && queue[i].order == barrier )
+		    first = i;
+	    run[0] = first;
+	    queue[first].busy = true;
+	    return 1;
+	}
+
+	int count = 0;
+	int command = queue[first].command;
+	if ( queue[first].blocks != null ) {
+	    run[0] = first; // a vector is already a command of its own
+	    queue[first].busy = true;
+	    return 1;
+	}
+	for ( int next = first; next != -1; count++ ) {
+	    run[count] = next;
+	    queue[next].busy = true;
+	    int blockId = queue[next].blockId + 1;
+	    next = -1;
+	    for ( int i = 0; i < queueDepth; i++ ) {
+		Request r = queue[i];
+		if ( !r.busy && r.command == command && r.blockId == blockId
+		     && r.blocks == null
+		     && r.order < barrier
+		     && ( next == -1 || r.order < queue[next].order ) )
+		    next = i;
+	    }
+	}
+	return count;
+    }
+
+    // Orders requests by block number, and by arrival on the same block.
+    private boolean before( Request r, int slot ) {
+	if ( slot == -1 )
 	    return true;
-	} else
-	    return false;
+	Request other = queue[slot];
+	return r.blockId < other.blockId ||
+	    ( r.blockId == other.blockId && r.order < other.order );
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    private synchronized int waitCommand( ) {
+	int count;
+	while ( ( count = schedule( ) ) == 0 ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	return count;
     }
 
     private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
-	try {
-	    Thread.sleep( seekTime );
-	} catch( InterruptedException e ) {
-	    SysLib.cerr( e.toString( ) + "\n" );
+	int tracks = Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	int seekTime = transferTime + delayPerTrack * tracks;
+	stats.seekDistance.record( tracks );
+	if ( seekTime > 0 ) {
+	    try {
+		Thread.sleep( seekTime );
+	    } catch( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
 	}
 	currentBlockId = targetBlockId;
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+    // Moves the head on to blockId within a command, which costs only the
+    // tracks crossed.
+    private void sweep( int blockId ) {
+	int sweepTime = delayPerTrack
+	    * Math.abs( blockId/trackSize - currentBlockId/trackSize );
+	if ( sweepTime > 0 ) {
+	    try {
+		Thread.sleep( sweepTime );
+	    } catch( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+	currentBlockId = blockId;
+    }
+
+    private synchronized void finishCommand( int count ) {
+	for ( int i = 0; i < count; i++ )
+	    complete( run[i] );
+    }
+
+    // Frees the slot and wakes the thread waiting for its request, as
+    // well as any thread waiting for a free slot.
+    private void complete( int slot ) {
+	Request r = queue[slot];
+	long latency = ( System.nanoTime( ) - r.queuedAt ) / 1000;
+	if ( r.command == READ )
+	    stats.readLatency.record( latency );
+	else if ( r.command == WRITE )
+	    stats.writeLatency.record( latency );
+	else
+	    stats.syncLatency.record( latency );
+	outstanding--;
+	r.handle.complete( );
+	r.command = IDLE;
+	r.blocks = null;
+	r.offsets = null;
+	r.buffer = null;
+	r.handle = null;
+	r.busy = false;
+	notifyAll( );
+    }
+
+    private void markDirty( int blockId ) {
+	dirty[ blockId >> 6 ] |= 1L << ( blockId & 63 );
+    }
+
+    // Copies the dirty blocks aside and clears the bitmap, so the flusher
+    // can write them back while the disk goes on serving requests.
+    private Snapshot snapshot( int slot ) {
+	Snapshot snap = new Snapshot( );
+	snap.slot = slot;
+	if ( data == null )
+	    return snap; // mapped: the OS tracks dirty pages itself
+	int count = 0;
+	for ( int i = 0; i < dirty.length; i++ )
+	    count += Long.bitCount( dirty[i] );
+	snap.blocks = new int[count];
+	snap.image = new byte[ count * blockSize ];
+	int n = 0;
+	for ( int i = 0; i < dirty.length; i++ ) {
+	    for ( long bits = dirty[i]; bits != 0; bits &= bits - 1 ) {
+		int blockId = i * 64 + Long.numberOfTrailingZeros( bits );
+		System.arraycopy( data, blockId * blockSize,
+				  snap.image, n * blockSize, blockSize );
+		snap.blocks[n++] = blockId;
+	    }
+	    dirty[i] = 0;
+	}
+	return snap;
+    }
+
+    // The blocks a SYNC request has to write back.
+    private class Snapshot {
+	int slot;        // the SYNC request this snapshot completes
+	int blocks[];    // dirty blocks in ascending order
+	byte image[];    // their contents when the sync was served
+    }
+
+    // Writes snapshots back to the DISK file in the background and then
+    // completes their SYNC requests.
+    private class SyncFlusher extends Thread {
+	private Vector<Snapshot> pending = new Vector<Snapshot>( );
+
+	public synchronized void enqueue( Snapshot snap ) {
+	    pending.add( snap );
+	    notify( );
+	}
+
+	private synchronized Snapshot dequeue( ) {
+	    while ( pending.isEmpty( ) ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	    return pending.remove( 0 );
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		Snapshot snap = dequeue( );
+		if ( regions != null ) {
+		    for ( int i = 0; i < regions.length; i++ )
+			regions[i].force( );
+		} else
+		    writeBack( snap );
+		synchronized( Disk.this ) {
+		    complete( snap.slot );
+		}
+	    }
+	}
+
+	// Writes each run of consecutive blocks with one positional write.
+	private void writeBack( Snapshot snap ) {
+	    try {
+		FileChannel channel = file.getChannel( );
+		for ( int i = 0, j; i < snap.blocks.length; i = j ) {
+		    for ( j = i + 1; j < snap.blocks.length &&
+			      snap.blocks[j] == snap.blocks[j - 1] + 1; j++ )
+			;
+		    ByteBuffer run = ByteBuffer.wrap( snap.image, i * blockSize,
+						      ( j - i ) * blockSize );
+		    long position = (long)snap.blocks[i] * blockSize;
+		    while ( run.hasRemaining( ) )
+			position += channel.write( run, position );
+		}
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+    }
+
+    // Returns the mapped region holding blockId, positioned at the block.
+    // Only the disk thread moves region positions.
+    private MappedByteBuffer region( int blockId ) {
+	long offset = (long)blockId * blockSize;
+	MappedByteBuffer region = regions[ (int)( offset / regionSize ) ];
+	region.position( (int)( offset % regionSize ) );
+	return region;
+    }
+
+    private void transfer( int command, int blockId, byte buffer[],
+			   int offset ) {
+	switch( command ) {
+	case READ:
+	    if ( regions != null )
+		region( blockId ).get( buffer, offset, blockSize );
+	    else
+		System.arraycopy( data, blockId * blockSize, 
+				  buffer, offset, 
+				  blockSize );
+	    break;
+	case WRITE:
+	    if ( regions != null )
+		region( blockId ).put( buffer, offset, blockSize );
+	    else {
+		System.arraycopy( buffer, offset, 
+				  data, blockId * blockSize, 
+				  blockSize );
+		markDirty( blockId );
+	    }
+	    break;
+	}
     }
 
     public void run ( ) {
+	flusher = new SyncFlusher( );
+	flusher.start( );
 	
 	while ( true ) {
-	    waitCommand( );
+	    int count = waitCommand( );
+	    long started = System.nanoTime( );
+	    for ( int i = 0; i < count; i++ )
+		stats.queued.record( ( started - queue[ run[i] ].queuedAt ) / 1000 );
+	    if ( queue[ run[0] ].command == SYNC ) {
+		stats.synced( );
+		// the flusher completes this sync once its snapshot is written
+		flusher.enqueue( snapshot( run[0] ) );
+		continue;
+	    }
+	    // a merged run or a vector pays a single seek to its first block
+	    Request first = queue[ run[0] ];
+	    targetBlockId = first.blockId;
 	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
-	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
-		break;
-	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
-		break;
-	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
+	    long sought = System.nanoTime( );
+	    stats.seeking.record( ( sought - started ) / 1000 );
+	    if ( first.blocks != null ) {
+		// a vector sweeps its blocks in ascending order
+		long sorted[] = new long[ first.blocks.length ];
+		for ( int i = 0; i < sorted.length; i++ )
+		    sorted[i] = ( (long)first.blocks[i] << 32 ) | i;
+		Arrays.sort( sorted );
+		for ( int i = 0; i < sorted.length; i++ ) {
+		    int index = (int)sorted[i];
+		    sweep( first.blocks[index] );
+		    transfer( first.command, first.blocks[index],
+			      first.buffer, ( first.offsets != null ) ?
+			      first.offsets[index] : index * blockSize );
+		}
+	    } else {
+		for ( int i = 0; i < count; i++ ) {
+		    Request r = queue[ run[i] ];
+		    transfer( r.command, r.blockId, r.buffer, 0 );
+		    currentBlockId = r.blockId;
 		}
-		// SysLib.cerr( "threadOS: DISK synchronized\n" );
-		break;
 	    }
-	    finishCommand( );
+	    // the sweep of a vector counts as transfer time
+	    stats.transferring.record( ( System.nanoTime( ) - sought ) / 1000 );
+	    stats.served( first.command == WRITE, count,
+			  ( first.blocks != null ) ? first.blocks.length : count );
+	    finishCommand( count );
 	}
     }
 }
@@ -0,0 +1,138 @@
+import java.util.*;
+
+// RAID-0: stripes a logical disk over several Disk threads, each with its
+// own backing file, so that requests to different disks are served in
+// parallel. Logical blocks are dealt out in chunks of stripeUnit blocks,
+// chunk c living on disk c % disks. With a single disk the array is a
+// plain pass-through to DISK.
+public class DiskArray {
+    private Disk disks[];
+    private int stripeUnit; // consecutive blocks kept on one disk
+    private int diskSize;   // logical blocks
+
+    public DiskArray( int totalBlocks, int count, int stripeUnit,
+		      DiskProfile profile, boolean mapped ) {
+	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+	this.stripeUnit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+	disks = new Disk[ ( count > 0 ) ? count : 1 ];
+	int chunks = ( diskSize + this.stripeUnit - 1 ) / this.stripeUnit;
+	int chunksPerDisk = ( chunks + disks.length - 1 ) / disks.length;
+	for ( int i = 0; i < disks.length; i++ )
+	    disks[i] = new Disk( ( disks.length == 1 ) ? diskSize :
+				 chunksPerDisk * this.stripeUnit, profile,
+				 mapped, ( disks.length == 1 ) ? "DISK" :
+				 "DISK" + i );
+    }
+
+    public void start( ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    disks[i].start( );
+    }
+
+    public int getDiskSize( ) {
+	return diskSize;
+    }
+
+    public int getTrackSize( ) {
+	return disks[0].getTrackSize( );
+    }
+
+    public int getDisks( ) {
+	return disks.length;
+    }
+
+    // Describes the I/O statistics of every disk.
+    public String report( ) {
+	StringBuffer report = new StringBuffer( );
+	for ( int i = 0; i < disks.length; i++ )
+	    report.append( "disk" + i + ": " + disks[i].getStats( ) );
+	return report.toString( );
+    }
+
+    public void resetStats( ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    disks[i].getStats( ).reset( );
+    }
+
+    private int diskOf( int blockId ) {
+	return ( blockId / stripeUnit ) % disks.length;
+    }
+
+    private int physicalBlock( int blockId ) {
+	return ( blockId / stripeUnit / disks.length ) * stripeUnit
+	    + blockId % stripeUnit;
+    }
+
+    // Each of these queues a request and returns its handle, or null for
+    // a wrong block number, just like the Disk methods of the same name.
+    public DiskRequest read( int blockId, byte buffer[] ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return null;
+	}
+	return disks[ diskOf( blockId ) ].read( physicalBlock( blockId ),
+						buffer );
+    }
+
+    public DiskRequest write( int blockId, byte buffer[] ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+	    return null;
+	}
+	return disks[ diskOf( blockId ) ].write( physicalBlock( blockId ),
+						 buffer );
+    }
+
+    public DiskRequest readv( int blocks[], byte buffer[] ) {
+	return vector( false, blocks, buffer );
+    }
+
+    public DiskRequest writev( int blocks[], byte buffer[] ) {
+	return vector( true, blocks, buffer );
+    }
+
+    public DiskRequest sync( ) {
+	DiskRequest handle = new DiskRequest( disks.length );
+	for ( int i = 0; i < disks.length; i++ )
+	    disks[i].submitSync( handle );
+	return handle;
+    }
+
+    // Splits a vector into one command per disk it touches. Every part
+    // moves its blocks straight to or from the caller's buffer.
+    private DiskRequest vector( boolean write, int blocks[], byte buffer[] ) {
+	if ( blocks.length == 0 ||
+	     buffer.length < blocks.length * Disk.blockSize ) {
+	    SysLib.cerr( "threadOS: a wrong vector\n" );
+	    return null;
+	}
+	int counts[] = new int[ disks.length ];
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 || blocks[i] >= diskSize ) {
+		SysLib.cerr( "threadOS: a wrong blockId for a vector\n" );
+		return null;
+	    }
+	    counts[ diskOf( blocks[i] ) ]++;
+	}
+	int parts = 0;
+	for ( int d = 0; d < disks.length; d++ )
+	    if ( counts[d] > 0 )
+		parts++;
+
+	DiskRequest handle = new DiskRequest( parts );
+	for ( int d = 0; d < disks.length; d++ ) {
+	    if ( counts[d] == 0 )
+		continue;
+	    int physical[] = new int[ counts[d] ];
+	    int offsets[] = new int[ counts[d] ];
+	    for ( int i = 0, n = 0; i < blocks.length; i++ ) {
+		if ( diskOf( blocks[i] ) == d ) {
+		    physical[n] = physicalBlock( blocks[i] );
+		    offsets[n++] = i * Disk.blockSize;
+		}
+	    }
+	    disks[d].submit( write, physical, offsets, buffer, handle );
+	}
+	return handle;
+    }
+}
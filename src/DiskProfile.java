@@ -0,0 +1,49 @@
+// The geometry and latency model of a simulated disk. A request costs
+// transferTime plus delayPerTrack for every track the head crosses,
+// where a track holds trackSize blocks. Profiles are selected by name
+// at boot, e.g. java Boot -profile ssd -blocks 65535
+public class DiskProfile {
+    public final String name;
+    public final int trackSize;     // blocks per track
+    public final int transferTime;  // ms per command
+    public final int delayPerTrack; // ms per track crossed
+    public final int defaultBlocks; // disk size when -blocks is not given
+
+    // the original threadOS disk
+    public static final DiskProfile DEFAULT
+	= new DiskProfile( "default", 10, 20, 1, 1000 );
+    // a spinning disk with large tracks: cheap short seeks, costly long ones
+    public static final DiskProfile HDD
+	= new DiskProfile( "hdd", 256, 8, 1, 65535 );
+    // flash: no seek penalty and a small per-command cost
+    public static final DiskProfile SSD
+	= new DiskProfile( "ssd", 1, 1, 0, 65535 );
+    // no latency at all, for functional tests
+    public static final DiskProfile RAM
+	= new DiskProfile( "ram", 1, 0, 0, 1000 );
+
+    private static final DiskProfile profiles[]
+	= { DEFAULT, HDD, SSD, RAM };
+
+    public DiskProfile( String name, int trackSize, int transferTime,
+			int delayPerTrack, int defaultBlocks ) {
+	this.name = name;
+	this.trackSize = ( trackSize > 0 ) ? trackSize : 1;
+	this.transferTime = transferTime;
+	this.delayPerTrack = delayPerTrack;
+	this.defaultBlocks = defaultBlocks;
+    }
+
+    // Returns the profile with the given name, or null if there is none.
+    public static DiskProfile forName( String name ) {
+	for ( int i = 0; i < profiles.length; i++ )
+	    if ( profiles[i].name.equals( name ) )
+		return profiles[i];
+	return null;
+    }
+
+    public String toString( ) {
+	return name + " (trackSize=" + trackSize + " transferTime=" +
+	    transferTime + "ms delayPerTrack=" + delayPerTrack + "ms)";
+    }
+}
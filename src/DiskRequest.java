@@ -0,0 +1,36 @@
+// A handle on one disk request. The submitter holds it and waits on it,
+// and the disk completes it once the request has been served, waking
+// exactly the threads waiting for this request. A request striped over
+// several disks is served in parts, and is done once all of them are.
+public class DiskRequest {
+    private int pending; // parts not served yet
+
+    public DiskRequest( ) {
+	this( 1 );
+    }
+
+    public DiskRequest( int parts ) {
+	pending = parts;
+    }
+
+    // Tests whether the request has been served.
+    public synchronized boolean isDone( ) {
+	return pending == 0;
+    }
+
+    // Sleeps until the request has been served.
+    public synchronized void waitFor( ) {
+	while ( pending > 0 ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+    }
+
+    synchronized void complete( ) {
+	if ( --pending == 0 )
+	    notifyAll( );
+    }
+}
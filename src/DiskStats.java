@@ -0,0 +1,62 @@
+// Always-on counters and latency histograms of one Disk. Times are in
+// microseconds and measured from when a request enters the queue.
+public class DiskStats {
+    private long reads;        // read requests served
+    private long writes;       // write requests served
+    private long syncs;        // sync requests served
+    private long blocksRead;
+    private long blocksWritten;
+    private long commands;     // seeks paid, each serving one run or vector
+    private long merged;       // requests that rode along in another's run
+
+    public final Histogram readLatency = new Histogram( "us" );
+    public final Histogram writeLatency = new Histogram( "us" );
+    public final Histogram syncLatency = new Histogram( "us" );
+    public final Histogram queued = new Histogram( "us" );
+    public final Histogram seeking = new Histogram( "us" );
+    public final Histogram transferring = new Histogram( "us" );
+    public final Histogram seekDistance = new Histogram( "tracks" );
+    public final Histogram queueDepth = new Histogram( "requests" );
+
+    // A command of count requests, moving blocks blocks, was served.
+    public synchronized void served( boolean write, int count, int blocks ) {
+	commands++;
+	merged += count - 1;
+	if ( write ) {
+	    writes += count;
+	    blocksWritten += blocks;
+	} else {
+	    reads += count;
+	    blocksRead += blocks;
+	}
+    }
+
+    public synchronized void synced( ) {
+	syncs++;
+    }
+
+    public synchronized void reset( ) {
+	reads = writes = syncs = 0;
+	blocksRead = blocksWritten = 0;
+	commands = merged = 0;
+	Histogram all[] = { readLatency, writeLatency, syncLatency, queued,
+			    seeking, transferring, seekDistance, queueDepth };
+	for ( int i = 0; i < all.length; i++ )
+	    all[i].reset( );
+    }
+
+    public synchronized String toString( ) {
+	return reads + " reads (" + blocksRead + " blocks), " +
+	    writes + " writes (" + blocksWritten + " blocks), " +
+	    syncs + " syncs, " + commands + " commands, " +
+	    merged + " merged\n" +
+	    "  read latency:   " + readLatency + "\n" +
+	    "  write latency:  " + writeLatency + "\n" +
+	    "  sync latency:   " + syncLatency + "\n" +
+	    "  queued:         " + queued + "\n" +
+	    "  seeking:        " + seeking + "\n" +
+	    "  transferring:   " + transferring + "\n" +
+	    "  seek distance:  " + seekDistance + "\n" +
+	    "  queue depth:    " + queueDepth + "\n";
+    }
+}
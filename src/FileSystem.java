@@ -1,17 +1,37 @@
+import java.util.Arrays;
+
 public class FileSystem {
 	private SuperBlock superblock;
 	private Directory directory;
 	private FileTable filetable;
+	private InodeTable inodes;
 	private final int SEEK_SET = 0;
 	private final int SEEK_CUR = 1;
 	private final int SEEK_END = 2;
+	private final static int minReadAhead = 4;  // blocks read ahead once a file is read sequentially
+	private final static int maxReadAhead = 32; // the most the window grows to
 	
-	public FileSystem(int diskBlocks) {
-		superblock = new SuperBlock(diskBlocks);
+	// layout is SuperBlock.BLOCK_TREE or SuperBlock.EXTENTS, for the file systems this one formats
+	// trackSize is the disk's, block groups are made of whole tracks
+	public FileSystem(int diskBlocks, int layout, int trackSize) {
+		superblock = new SuperBlock(diskBlocks, layout, trackSize);
+		
+		// inodes changed by open files, and blocks waiting to be freed, are logged with each group commit
+		Journal.beforeCommit(new Runnable() {
+			public void run() {
+				if (!superblock.mounted())
+					return;
+				inodes.sync();
+				superblock.freePending();
+			}
+		});
+		if (!superblock.mounted()) // files can't be opened until the disk is formatted
+			return;
 		
 		directory = new Directory(superblock.totalInodes);
 		
-		filetable = new FileTable (directory);
+		inodes = new InodeTable();
+		filetable = new FileTable (directory, inodes, superblock);
 		
 		FileTableEntry dirEnt = open("/", "r");
 		int dirSize = fsize(dirEnt);
@@ -24,12 +44,27 @@ public class FileSystem {
 	}
 	
 	void sync() {
-		FileTableEntry rootftEnt = open("/", "w");
-		byte[]rootftData = directory.directory2bytes();
-		write(rootftEnt, rootftData);
-		close(rootftEnt);
-		
+		if (!superblock.mounted())
+			return;
+		writeDirectory();
+		inodes.sync();
 		superblock.sync();
+		Journal.checkpoint();
+	}
+	
+	// commits the metadata updates made so far, open files' inodes and deferred frees included, to the journal
+	// the before-commit task logs those once no operation is running, as for a group commit
+	void commit() {
+		if (!superblock.mounted())
+			return;
+		Journal.commit();
+	}
+	
+	// writes the directory into the root file, whose blocks are logged like other metadata
+	private void writeDirectory() {
+		FileTableEntry dirEnt = open("/", "w+");
+		write(dirEnt, directory.directory2bytes());
+		close(dirEnt);
 	}
 	
 	// reformat the file system with the given amount of files
@@ -42,7 +77,8 @@ public class FileSystem {
 		
 		directory = new Directory(superblock.totalInodes);
 		
-		filetable = new FileTable(directory);
+		inodes = new InodeTable();
+		filetable = new FileTable(directory, inodes, superblock);
 		
 		return true;
 	}
@@ -50,12 +86,25 @@ public class FileSystem {
 	// Gets a pointer to the file table entry from the file table given the filename string and mode
 	// All file operations are performed via this pointer
 	FileTableEntry open(String filename, String mode) {
+		if (!superblock.mounted())
+			return null;
 		FileTableEntry ftEnt = filetable.falloc(filename, mode);
+		if (ftEnt == null)
+			return null;
 		
-		// if open requests write, ensure blocks are unallocated
-		if (mode.equals("w"))
-			if(!deallocAllBlocks(ftEnt))
-				return null;
+		Journal.begin();
+		try {
+			// a new file changed the directory
+			if (directory.testAndResetDirty())
+				writeDirectory();
+			
+			// if open requests write, ensure blocks are unallocated
+			if (mode.equals("w"))
+				if(!deallocAllBlocks(ftEnt))
+					return null;
+		} finally {
+			Journal.end();
+		}
 		
 		return ftEnt;
 	}
@@ -81,139 +130,264 @@ public class FileSystem {
 	
 	// writes the contents of the buffer into the file from the file entry.
 	// location of the write starts from the seek ptr which returns the target block.
+	// the blocks covered by the write are mapped (and allocated if needed) first,
+	// then written with a single vectored disk command.
 	// returns the number of bytes written from the buffer.
 	int write(FileTableEntry ftEnt, byte[] buffer) {
 		if (ftEnt.mode.equals("r"))
 			return -1;
 		
+		Journal.begin();
+		try {
+			return writeBlocks(ftEnt, buffer);
+		} finally {
+			Journal.end();
+		}
+	}
+	
+	private int writeBlocks(FileTableEntry ftEnt, byte[] buffer) {
 		synchronized(ftEnt) 
 		{
-			int bytesWritten = 0;
 			int writeLength = buffer.length;
+			if (writeLength == 0)
+				return 0;
+			int firstBlock = ftEnt.seekPtr / Disk.blockSize;
+			int lastBlock = (ftEnt.seekPtr + writeLength - 1) / Disk.blockSize;
+			int[] targetBlocks = new int[lastBlock - firstBlock + 1];
+			boolean[] fresh = new boolean[targetBlocks.length];
 			
-			while(writeLength > 0)
+			// look up the blocks already mapped, the rest are past the end of the file
+			int unmapped = 0;
+			int near = -1; // last block of the file before the unmapped ones
+			for (int i = 0; i < targetBlocks.length; i++)
+			{
+				int offset = (firstBlock + i) * Disk.blockSize;
+				targetBlocks[i] = ftEnt.inode.findTargetBlock(offset);
+				if (targetBlocks[i] == -1 && unmapped++ == 0)
+					near = (i > 0) ? targetBlocks[i - 1] : (offset > 0) ? ftEnt.inode.findTargetBlock(offset - Disk.blockSize) : -1;
+			}
+			
+			// allocate all of them in one call, as one run right after the file's last block if there is room
+			// or, for an empty file, in its inode's block group.
+			// the index blocks they need come first in the run, so the data ends it and the next
+			// append can carry on right after it
+			int[] indexBlocks = new int[0];
+			int[] freeBlocks = new int[0];
+			if (unmapped > 0)
+			{
+				int reserved = ftEnt.inode.missingIndexBlocks(firstBlock + targetBlocks.length - unmapped, unmapped);
+				int[] run = (near == -1) ? superblock.allocateFor(ftEnt.iNumber, reserved + unmapped) : superblock.allocate(reserved + unmapped, near);
+				if (run == null)
+				{
+					SysLib.cerr("Error on write: out of disk space\n");
+					return -1;
+				}
+				indexBlocks = Arrays.copyOfRange(run, 0, reserved);
+				freeBlocks = Arrays.copyOfRange(run, reserved, run.length);
+			}
+			// on an error the blocks mapped so far stay mapped past the end of the file:
+			// the next write over them reuses them, and releasing the file frees them
+			int used = 0;    // allocated blocks mapped so far
+			int indexed = 0; // reserved index blocks set so far
+			for (int i = targetBlocks.length - unmapped; i < targetBlocks.length; i++)
 			{
-				//SysLib.cout("Seek ptr for Inode:" + ftEnt.iNumber + " = " + ftEnt.seekPtr + "\n");
-				int targetBlock = ftEnt.inode.findTargetBlock(ftEnt.seekPtr);
-				//SysLib.cout("Target block " + targetBlock + "\n");
-				if (targetBlock == -1) // target block has not been set, find a free block to write to
+				int offset = (firstBlock + i) * Disk.blockSize;
+				int freeBlock = freeBlocks[used];
+				int retCode = ftEnt.inode.setTargetBlock(offset, freeBlock);
+				while (retCode == -3) // an index block on the way is missing -> set it, there may be one per level
 				{
-					int freeBlock = superblock.getFreeBlock();
-					int retCode = ftEnt.inode.setTargetBlock(ftEnt.seekPtr, (short)freeBlock);
-					if (retCode == -1 || retCode == -2) // block has been set or the previous block in the inode is unused, error
+					// the extent layout's index block is not reserved, it goes in the inode's block group
+					int newLocation = -1;
+					if (indexed < indexBlocks.length)
+						newLocation = indexBlocks[indexed++];
+					else
 					{
-						SysLib.cerr("Error on write: block has been set already/previous block in inode unused\n");
+						int[] index = superblock.allocateFor(ftEnt.iNumber, 1);
+						if (index != null)
+							newLocation = index[0];
+					}
+					if (newLocation == -1)
+					{
+						SysLib.cerr("Error on write: out of disk space\n");
+						freeUnused(indexBlocks, indexed);
+						freeUnused(freeBlocks, used);
 						return -1;
 					}
-					else if (retCode == -3) // indirect pointer is null -> set the index block
+					if (!ftEnt.inode.setIndexBlock(offset, newLocation))
 					{
-						short newLocation = (short)superblock.getFreeBlock(); // get block for indirect
-						if (!ftEnt.inode.setIndexBlock(newLocation))
-						{
-							SysLib.cerr("Error on write: set index block\n");
-							return -1;
-						}
-						if (ftEnt.inode.setTargetBlock(ftEnt.seekPtr, (short)freeBlock) != 0)
-						{
-							SysLib.cerr("Error on write: set target block\n");
-							return -1;
-						}
+						SysLib.cerr("Error on write: set index block\n");
+						superblock.freeBlock(newLocation);
+						freeUnused(indexBlocks, indexed);
+						freeUnused(freeBlocks, used);
+						return -1;
 					}
-					targetBlock = freeBlock;
+					retCode = ftEnt.inode.setTargetBlock(offset, freeBlock);
 				}
-				byte[] data = new byte[Disk.blockSize];
-				SysLib.rawread(targetBlock, data);
-				//SysLib.cout("Target block for writing: " + targetBlock + "\n");
-				int dataOffset = ftEnt.seekPtr % Disk.blockSize;
-				//SysLib.cout("Data offset = " + dataOffset + "\n");
-				int bytesLeftInBlock = Disk.blockSize - dataOffset; // difference of bytes left in block from the offset
-				// take min of total writelength and bytesleftinblock so we dont write over into the next block
-				int dataWriteLength = Math.min(bytesLeftInBlock, writeLength); 
-				
-				System.arraycopy(buffer, bytesWritten, data, dataOffset, dataWriteLength);
-				SysLib.rawwrite(targetBlock, data);
-				
-				ftEnt.seekPtr += dataWriteLength;
-				bytesWritten += dataWriteLength;
-				writeLength -= dataWriteLength;
-				
-				// update length of inode as we write to it
-				if(ftEnt.seekPtr > ftEnt.inode.length)
+				if (retCode != 0) // block has been set or the previous block in the inode is unused, error
 				{
-					ftEnt.inode.length = ftEnt.seekPtr;
+					SysLib.cerr("Error on write: block has been set already/previous block in inode unused\n");
+					freeUnused(indexBlocks, indexed);
+					freeUnused(freeBlocks, used);
+					return -1;
 				}
+				targetBlocks[i] = freeBlock;
+				fresh[i] = true;
+				used++;
+			}
+			freeUnused(indexBlocks, indexed); // none are left when they were counted right
+			
+			byte[] data = new byte[targetBlocks.length * Disk.blockSize];
+			int dataOffset = ftEnt.seekPtr % Disk.blockSize;
+			int endOffset = (ftEnt.seekPtr + writeLength) % Disk.blockSize;
+			// partially overwritten blocks at either end keep their other bytes,
+			// newly allocated ones have nothing worth keeping
+			if (dataOffset != 0 && !fresh[0])
+				readBlock(targetBlocks[0], data, 0);
+			if (endOffset != 0 && (targetBlocks.length > 1 || dataOffset == 0) && !fresh[fresh.length - 1])
+				readBlock(targetBlocks[targetBlocks.length - 1], data, data.length - Disk.blockSize);
+			
+			System.arraycopy(buffer, 0, data, dataOffset, writeLength);
+			if (ftEnt.iNumber == 0) // the directory is metadata, log it
+			{
+				byte[] block = new byte[Disk.blockSize];
+				for (int i = 0; i < targetBlocks.length; i++)
+				{
+					System.arraycopy(data, i * Disk.blockSize, block, 0, Disk.blockSize);
+					Journal.write(targetBlocks[i], block);
+				}
+			}
+			else
+			{
+				// file data bypasses the journal, which must forget any
+				// metadata these blocks held before they were allocated
+				Journal.revoke(targetBlocks);
+				SysLib.cwritev(targetBlocks, data);
+			}
+			
+			ftEnt.seekPtr += writeLength;
+			
+			// update length of inode as we write to it
+			// the inode goes to disk when the file is closed or synced
+			if(ftEnt.seekPtr > ftEnt.inode.length)
+			{
+				ftEnt.inode.length = ftEnt.seekPtr;
 			}
-			ftEnt.inode.toDisk(ftEnt.iNumber);
+			ftEnt.inode.dirty = true;
 			
-			return bytesWritten;
+			return writeLength;
 		}
 	}
 	
+	// reads one block into data at the given offset
+	private void readBlock(int blockNumber, byte[] data, int offset) {
+		byte[] block = new byte[Disk.blockSize];
+		Journal.read(blockNumber, block);
+		System.arraycopy(block, 0, data, offset, Disk.blockSize);
+	}
+	
 	// reads a file into the buffer given the file table entry
+	// all blocks covered by the read are fetched with a single vectored disk command
 	// returns the number of bytes read
 	int read(FileTableEntry ftEnt, byte[] buffer) {
 		if(ftEnt.mode.equals("w") || ftEnt.mode.equals("a"))
 			return -1;
-		int readLength = buffer.length;
-		int bytesRead = 0;
 		
 		synchronized(ftEnt)
 		{
-			while (readLength > 0 && ftEnt.seekPtr < fsize(ftEnt))
+			int endPtr = Math.min(ftEnt.seekPtr + buffer.length, fsize(ftEnt));
+			if (endPtr <= ftEnt.seekPtr)
+				return 0;
+			int firstBlock = ftEnt.seekPtr / Disk.blockSize;
+			int lastBlock = (endPtr - 1) / Disk.blockSize;
+			int[] targetBlocks = new int[lastBlock - firstBlock + 1];
+			int blockCount = 0;
+			while (blockCount < targetBlocks.length)
 			{
-				//SysLib.cout("Seek ptr for Inode:" + ftEnt.iNumber + " = " + ftEnt.seekPtr + "\n");
-				int targetBlock = ftEnt.inode.findTargetBlock(ftEnt.seekPtr);
+				int targetBlock = ftEnt.inode.findTargetBlock((firstBlock + blockCount) * Disk.blockSize);
 				if (targetBlock == -1) // target block has not been set, cannot read
 					break;
-				
-				byte[] data = new byte[Disk.blockSize];
-				SysLib.rawread(targetBlock, data);
-				
-				int dataOffset = ftEnt.seekPtr % Disk.blockSize;
-				//SysLib.cout("Data offset:" + dataOffset);
-				
-				int bytesLeftInBlock = Disk.blockSize - dataOffset; // difference of bytes left in block from the offset
-				//SysLib.cout("\nbytesLeftInBlock:" + bytesLeftInBlock);
-				int bytesLeftInFile = fsize(ftEnt) - ftEnt.seekPtr; // size of file - where the seek ptr is
-				//SysLib.cout("\n(fileLeft):" + bytesLeftInFile);
-				int dataReadLength = Math.min(Math.min(bytesLeftInBlock, readLength), bytesLeftInFile);
-				System.arraycopy(data, dataOffset, buffer, bytesRead, dataReadLength);
-				
-				ftEnt.seekPtr += dataReadLength;
-				bytesRead += dataReadLength;
-				readLength -= dataReadLength;
+				targetBlocks[blockCount++] = targetBlock;
 			}
+			if (blockCount == 0)
+				return 0;
+			if (blockCount < targetBlocks.length)
+			{
+				targetBlocks = Arrays.copyOf(targetBlocks, blockCount);
+				endPtr = (firstBlock + blockCount) * Disk.blockSize;
+			}
+			
+			byte[] data = new byte[blockCount * Disk.blockSize];
+			if (ftEnt.iNumber == 0) // the directory may still be in the journal
+			{
+				for (int i = 0; i < blockCount; i++)
+					readBlock(targetBlocks[i], data, i * Disk.blockSize);
+			}
+			else
+			{
+				SysLib.creadv(targetBlocks, data);
+				readAhead(ftEnt, firstBlock, endPtr);
+			}
+			
+			int bytesRead = endPtr - ftEnt.seekPtr;
+			System.arraycopy(data, ftEnt.seekPtr % Disk.blockSize, buffer, 0, bytesRead);
+			ftEnt.seekPtr += bytesRead;
 			return bytesRead;
 		}
 	}
 	
-	// given the file table entry, deallocates all of the blocks associated with that entry
-	private boolean deallocAllBlocks(FileTableEntry ftEnt) {
-		if (ftEnt.inode.count != 1)
-			return false;
-		// free data from index block
-		byte[] indirectData = ftEnt.inode.freeIndexBlock();
-		if (indirectData != null)
+	// returns the blocks of an allocation a failed write did not get to map
+	private void freeUnused(int[] blocks, int from) {
+		for (int i = from; i < blocks.length; i++)
+			superblock.freeBlock(blocks[i]);
+	}
+	
+	// a read starting where the last one ended doubles the read-ahead window of the file,
+	// up to maxReadAhead blocks, any other read closes it.
+	// once less than half of the window is left read ahead, the blocks up to its end are
+	// prefetched into the cache, so the disk works on them while the reader consumes the rest
+	private void readAhead(FileTableEntry ftEnt, int firstBlock, int endPtr) {
+		if (firstBlock == ftEnt.nextBlock)
+			ftEnt.readAhead = (ftEnt.readAhead == 0) ? minReadAhead : Math.min(ftEnt.readAhead * 2, maxReadAhead);
+		else
 		{
-			int indexBlock;
-			for (int i = 0; i < indirectData.length; i+=2)
-			{
-				indexBlock = SysLib.bytes2short(indirectData, i);
-				if (indexBlock == -1)
-					break;
-				superblock.freeBlock(indexBlock);
-			}
+			ftEnt.readAhead = 0;
+			ftEnt.readAheadEnd = 0;
 		}
-		// free direct pointer blocks
-		for (int i = 0; i < 11; i++)
+		ftEnt.nextBlock = endPtr / Disk.blockSize;
+		if (ftEnt.readAhead == 0)
+			return;
+		
+		int unread = (endPtr + Disk.blockSize - 1) / Disk.blockSize; // first block not read yet
+		if (ftEnt.readAheadEnd - unread >= ftEnt.readAhead / 2)
+			return;
+		int start = Math.max(unread, ftEnt.readAheadEnd);
+		int end = Math.min(unread + ftEnt.readAhead, (fsize(ftEnt) + Disk.blockSize - 1) / Disk.blockSize);
+		int[] blocks = new int[Math.max(0, end - start)];
+		int count = 0;
+		while (count < blocks.length)
 		{
-			if (ftEnt.inode.direct[i] != -1)
-			{
-				superblock.freeBlock(ftEnt.inode.direct[i]);
-				ftEnt.inode.direct[i] = -1;
-			}
+			int targetBlock = ftEnt.inode.findTargetBlock((start + count) * Disk.blockSize);
+			if (targetBlock == -1)
+				break;
+			blocks[count++] = targetBlock;
 		}
-		ftEnt.inode.toDisk(ftEnt.iNumber);
+		if (count > 0)
+			SysLib.cprefetch(Arrays.copyOf(blocks, count));
+		ftEnt.readAheadEnd = start + count;
+	}
+	
+	// given the file table entry, deallocates all of the blocks associated with that entry
+	private boolean deallocAllBlocks(FileTableEntry ftEnt) {
+		if (ftEnt.inode.count != 1)
+			return false;
+		int[] blocks = ftEnt.inode.releaseBlocks();
+		// the inode must not reach disk later than the bitmap it returned its blocks to
+		ftEnt.inode.dirty = true;
+		inodes.flush(ftEnt.iNumber);
+		// the data blocks and the index block are freed in the background, at the
+		// latest by the group commit that logs the release. only a transaction
+		// filling up in between commits the inode without them
+		superblock.freeLater(blocks);
 		return true;
 	}
 	
@@ -222,8 +396,18 @@ public class FileSystem {
 	// close the file table entry and free from directory
 	boolean delete(String filename) {
 		FileTableEntry ftEnt = open(filename, "w");
+		if (ftEnt == null)
+			return false;
 		short iNumber = ftEnt.iNumber;
-		return (close(ftEnt) && directory.ifree(iNumber));
+		Journal.begin();
+		try {
+			boolean deleted = close(ftEnt) && directory.ifree(iNumber);
+			if (directory.testAndResetDirty())
+				writeDirectory();
+			return deleted;
+		} finally {
+			Journal.end();
+		}
 	}
 	
 	// sets the seek pointer for a file entry given the offset and the whence for the seek
@@ -4,20 +4,25 @@ import java.util.Vector;
 public class FileTable {
 	private Vector<FileTableEntry> table;
 	private Directory dir;
+	private InodeTable inodes;
+	private SuperBlock superblock;
 	private final static short UNUSED = 0;
 	private final static short USED = 1;
 	private final static short READ = 2;
 	private final static short WRITE = 3;
 	
-	public FileTable(Directory directory) {
+	public FileTable(Directory directory, InodeTable inodeTable, SuperBlock superblock) {
 		table = new Vector<FileTableEntry>();
 		dir = directory;
+		inodes = inodeTable;
+		this.superblock = superblock;
 	}
 	
 	// allocate a new file table entry for the file name
 	// allocate/retrieve and register the corresponding inode using dir
+	// the inode is shared through the inode table with every other entry of the file
 	// increment the inode's count
-	// immediately write back this inode to disk
+	// a new file's inode is immediately written back to disk
 	// return a references to this file table entry
 	public synchronized FileTableEntry falloc(String filename, String mode) {
 		Inode inode;
@@ -25,7 +30,7 @@ public class FileTable {
 		
 		if (iNumber >= 0) {
 			while (true) {
-				inode = new Inode(iNumber);
+				inode = inodes.get(iNumber);
 				if (mode.equals("r")) { // requesting read
 					if (inode.flag == UNUSED || inode.flag == READ) // file is able to be read
 					{
@@ -64,22 +69,22 @@ public class FileTable {
 			if (mode.equals("r")) // cannot read from nonexistent file
 				return null;
 			// write operation
-			inode = new Inode();
-			iNumber = dir.ialloc(filename);
-			inode.flag = WRITE;
+			iNumber = dir.ialloc(filename, superblock.inodeGoal()); // in the block group with the most room
 			if (iNumber < 0) // out of file space
 				return null;
+			inode = inodes.create(iNumber);
+			inode.flag = WRITE;
 		}
 		
 		inode.count++;
-		inode.toDisk(iNumber);
 		FileTableEntry ftEnt = new FileTableEntry(inode, iNumber, mode);
 		table.add(ftEnt);
 		return ftEnt;
 	}
 	
 	// receive a file table entry reference
-	// save the corresponding inode to disk
+	// release the corresponding inode, which is saved to disk if it changed
+	// and no other entry holds it
 	// free this file table entry
 	// return true if this file table entry found in the table
 	public synchronized boolean ffree(FileTableEntry e) {
@@ -90,9 +95,9 @@ public class FileTable {
 			{
 				e.inode.flag = UNUSED;
 			}
-			e.inode.toDisk(e.iNumber);
+			inodes.release(e.iNumber);
 			e = null;
-			notify();
+			notifyAll(); // waiters may be after different files
 			return true;
 		}
 		return false;
@@ -4,6 +4,9 @@ public class FileTableEntry {  // Each table entry should have
     public final short iNumber;//    this inode number
     public int count;          //    a count to maintain #threads sharing this
     public final String mode;  //    "r", "w", "w+", or "a"
+    public int nextBlock;      //    where a sequential read would start
+    public int readAhead;      //    blocks to read ahead of it, 0 if none
+    public int readAheadEnd;   //    blocks below it were read ahead
     FileTableEntry ( Inode i, short inumber, String m ) {
 	seekPtr = 0;           // the seek pointer is set to the file top.
 	inode = i;
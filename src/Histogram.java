@@ -0,0 +1,84 @@
+// A fixed-size histogram of non-negative values in the style of
+// HdrHistogram: values below 16 get a bucket each, and every power of two
+// above that is split into 8 linear sub-buckets, so any value is
+// recorded within 12.5% using a few hundred counters and no allocation.
+public class Histogram {
+    private static final int subBuckets = 8;
+    private static final int linear = 16;  // values kept exactly
+    private static final int buckets = linear + ( 63 - 4 ) * subBuckets;
+
+    private final String unit;
+    private long counts[];
+    private long count;
+    private long sum;
+    private long min;
+    private long max;
+
+    public Histogram( String unit ) {
+	this.unit = unit;
+	counts = new long[ buckets ];
+	reset( );
+    }
+
+    public synchronized void reset( ) {
+	for ( int i = 0; i < buckets; i++ )
+	    counts[i] = 0;
+	count = 0;
+	sum = 0;
+	min = Long.MAX_VALUE;
+	max = 0;
+    }
+
+    public synchronized void record( long value ) {
+	if ( value < 0 )
+	    value = 0;
+	counts[ bucketOf( value ) ]++;
+	count++;
+	sum += value;
+	min = Math.min( min, value );
+	max = Math.max( max, value );
+    }
+
+    public synchronized long getCount( ) {
+	return count;
+    }
+
+    private static int bucketOf( long value ) {
+	if ( value < linear )
+	    return (int)value;
+	int exponent = 63 - Long.numberOfLeadingZeros( value ); // >= 4
+	int sub = (int)( value >> ( exponent - 3 ) ) & ( subBuckets - 1 );
+	return linear + ( exponent - 4 ) * subBuckets + sub;
+    }
+
+    // The highest value a bucket holds.
+    private static long highestOf( int bucket ) {
+	if ( bucket < linear )
+	    return bucket;
+	int exponent = ( bucket - linear ) / subBuckets + 4;
+	long sub = ( bucket - linear ) % subBuckets;
+	return ( ( subBuckets + sub + 1 ) << ( exponent - 3 ) ) - 1;
+    }
+
+    // The value at or below which the given percent of values fall.
+    public synchronized long percentile( double percent ) {
+	if ( count == 0 )
+	    return 0;
+	long rank = (long)Math.ceil( count * percent / 100.0 );
+	long seen = 0;
+	for ( int i = 0; i < buckets; i++ ) {
+	    seen += counts[i];
+	    if ( seen >= Math.max( rank, 1 ) )
+		return Math.min( highestOf( i ), max );
+	}
+	return max;
+    }
+
+    public synchronized String toString( ) {
+	if ( count == 0 )
+	    return "n=0";
+	return "n=" + count + " mean=" + ( sum / count ) + " min=" + min +
+	    " p50=" + percentile( 50 ) + " p90=" + percentile( 90 ) +
+	    " p99=" + percentile( 99 ) + " max=" + max + " " + unit;
+    }
+}
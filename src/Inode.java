@@ -1,20 +1,51 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
+// an inode maps a file's blocks in one of three on-disk layouts, chosen when the file system is formatted
+// block map: direct[0..10] point to the first 11 blocks and the index block pointed to by indirect
+// points to the next 256, one pointer per block
+// block tree: direct[0..10] point to the first 11 blocks, and indirect, direct[11] and direct[12]
+// are the roots of single, double and triple indirect trees of index blocks, mapping the next
+// 128, 128^2 and 128^3 blocks. its block pointers are 32 bits, so an index block holds 128 of
+// them, the inode takes 64 bytes and a file reaches about 1 GB
+// extents: each mapping is a run of contiguous blocks stored as a (start, length) pair of shorts,
+// so direct[2k] and direct[2k+1] hold the k-th of 5 inline extents and direct[10] is unused.
+// the index block holds 128 more extents. extents are used in file order, the first unused
+// one has a start of -1
+// the block map and extent layouts store 16-bit block pointers in 32-byte inodes, so their file
+// systems end at block 65535. in memory every pointer is an int, -1 when unused
+// every file table entry of an open file shares its inode, and entries reading the file run
+// at the same time, so the methods that map blocks and load index blocks hold the inode's lock
 public class Inode {
-	private final static int iNodeSize = 32;  // each iNode is 32 bytes
 	private final static int directSize = 11; // num direct pointers
+	private final static int inlineExtents = 5; // extents held in direct[]
+	private final static int treeDirect = 11;   // direct pointers of the block tree layout
+	private final static int treeRoots = 2;     // roots of the block tree kept in direct[] after them
+	// 16-bit block pointers are unsigned, with 0xffff (-1) meaning unused
+	final static int maxBlocks = 0xffff;
+	static int layout = SuperBlock.BLOCK_MAP; // layout of the mounted file system, set by SuperBlock
+	// where the inode table of the mounted file system is, set by SuperBlock: slices of
+	// inodesPerSlice inodes, the k-th one starting at block sliceStart[k]
+	private static int inodesPerSlice = Disk.blockSize / size(SuperBlock.BLOCK_MAP);
+	private static int[] sliceStart = { 1 };
 
 	public int length;								// size of file in bytes
 	public short count;								// number of file table entries pointing to this inode
 	public short flag;								// flag if inode in use, 0 = unused, 1 = used
-	public short direct[] = new short[directSize];  // array of pointers to blocks of data
-	public short indirect;    						// indirect pointer
+	public int direct[] = new int[directSize + treeRoots]; // array of pointers to blocks of data
+	public int indirect;    						// indirect pointer
+	boolean dirty;									// changed since last written to disk, never stored
+	// index blocks decoded so far, by block number, kept as long as the inode is
+	private HashMap<Integer, int[]> indexes = new HashMap<Integer, int[]>();
+	private HashSet<Integer> dirtyIndexes = new HashSet<Integer>(); // changed since written to disk
 	
 	
 	Inode () {
 		length = 0;
 		count = 0;
 		flag = 1;
-		for (int i = 0; i < directSize; i++) {
+		for (int i = 0; i < direct.length; i++) {
 			direct[i] = -1;
 		}
 		indirect = -1;
@@ -22,10 +53,9 @@ public class Inode {
 	
 	Inode (short iNumber ) { // retrieves existing inode from disk
 		byte[] inodeBlock = new byte[Disk.blockSize];
-		int iNodeBlockNum = (iNumber / 16) + 1; // divide by 16 and add 1 to account for superblock
-		SysLib.rawread(iNodeBlockNum, inodeBlock); 
+		Journal.read(blockOf(iNumber), inodeBlock);
 		
-		int offset = (iNumber % 16) * iNodeSize;
+		int offset = offsetOf(iNumber);
 		length = SysLib.bytes2int(inodeBlock, offset);
 		offset += 4;
 		count = SysLib.bytes2short(inodeBlock, offset);
@@ -33,44 +63,105 @@ public class Inode {
 		flag = SysLib.bytes2short(inodeBlock, offset);
 		offset += 2;
 		
-		for (int i = 0; i < directSize; i++)
+		for (int i = 0; i < storedDirect(); i++)
 		{
-			direct[i] = SysLib.bytes2short(inodeBlock, offset);
-			offset += 2;
+			direct[i] = readPointer(inodeBlock, offset);
+			offset += pointerBytes();
 		}
-		indirect = SysLib.bytes2short(inodeBlock, offset);
+		for (int i = storedDirect(); i < direct.length; i++)
+			direct[i] = -1;
+		indirect = readPointer(inodeBlock, offset);
 	}
 	
 	// writes an inode back to the disk given the inode number
+	// along with its index blocks that changed
 	int toDisk(short iNumber) {
-		byte[] inodeData = new byte[iNodeSize];
-		
-		int iNodeBlockNum = iNumber / 16 + 1;
-		//SysLib.rawread(iNodeBlockNum, inodeBlock);
+		int iNodeBlockNum = blockOf(iNumber);
 		
-		int offset = 0;
+		byte[] inodeBlock = new byte[Disk.blockSize];
+		Journal.read(iNodeBlockNum, inodeBlock);
+		saveTo(inodeBlock, iNumber);
 		
-		SysLib.int2bytes(length, inodeData, offset);
+		Journal.write(iNodeBlockNum, inodeBlock);
+		return 0;
+	}
+	
+	// stores the inode into its slot of inodeBlock, the block holding inode iNumber,
+	// after writing back its index blocks that changed
+	// the caller writes inodeBlock to disk
+	synchronized void saveTo(byte[] inodeBlock, short iNumber) {
+		writeIndex();
+		toBytes(inodeBlock, offsetOf(iNumber));
+		dirty = false;
+	}
+	
+	// bytes an inode takes on disk in the given layout
+	static int size(int layout) {
+		return (layout == SuperBlock.BLOCK_TREE) ? 64 : 32;
+	}
+	
+	// places the inode table of the mounted file system: inodes inodes per slice,
+	// each slice in whole blocks from the block in starts
+	static void placeTable(int inodes, int[] starts) {
+		inodesPerSlice = inodes;
+		sliceStart = starts;
+	}
+	
+	// the block holding inode iNumber
+	static int blockOf(short iNumber) {
+		return sliceStart[iNumber / inodesPerSlice] + (iNumber % inodesPerSlice) * size(layout) / Disk.blockSize;
+	}
+	
+	// where inode iNumber starts in its block
+	static int offsetOf(short iNumber) {
+		return (iNumber % inodesPerSlice) * size(layout) % Disk.blockSize;
+	}
+	
+	// serializes the inode into the size(layout) bytes of data starting at offset
+	void toBytes(byte[] data, int offset) {
+		SysLib.int2bytes(length, data, offset);
 		offset += 4;
-		SysLib.short2bytes(count, inodeData, offset);
+		SysLib.short2bytes(count, data, offset);
 		offset += 2;
-		SysLib.short2bytes(flag, inodeData, offset);
+		SysLib.short2bytes(flag, data, offset);
 		offset += 2;
 		
-		for (int i = 0; i < directSize; i++)
+		for (int i = 0; i < storedDirect(); i++)
 		{
-			SysLib.short2bytes(direct[i], inodeData, offset);
-			offset += 2;
+			writePointer(direct[i], data, offset);
+			offset += pointerBytes();
 		}
-		SysLib.short2bytes(indirect, inodeData, offset);
-		offset += 2;
-		
-		byte[] inodeBlock = new byte[Disk.blockSize];
-		SysLib.rawread(iNodeBlockNum, inodeBlock);
-		offset = (iNumber % 16) * iNodeSize;
-		System.arraycopy(inodeData, 0, inodeBlock, offset, iNodeSize);
-		
-		return SysLib.rawwrite(iNodeBlockNum, inodeBlock);
+		writePointer(indirect, data, offset);
+	}
+	
+	// bytes of a block pointer on disk
+	private static int pointerBytes() {
+		return (layout == SuperBlock.BLOCK_TREE) ? 4 : 2;
+	}
+	
+	// pointers of direct[] stored with the inode
+	private static int storedDirect() {
+		return (layout == SuperBlock.BLOCK_TREE) ? treeDirect + treeRoots : directSize;
+	}
+	
+	// block pointers in an index block
+	private static int pointersPerBlock() {
+		return Disk.blockSize / pointerBytes();
+	}
+	
+	// reads the block pointer at offset of data, -1 if it is unused
+	private static int readPointer(byte[] data, int offset) {
+		if (pointerBytes() == 4)
+			return SysLib.bytes2int(data, offset);
+		short pointer = SysLib.bytes2short(data, offset);
+		return (pointer == -1) ? -1 : pointer & 0xffff;
+	}
+	
+	private static void writePointer(int pointer, byte[] data, int offset) {
+		if (pointerBytes() == 4)
+			SysLib.int2bytes(pointer, data, offset);
+		else
+			SysLib.short2bytes((short)pointer, data, offset);
 	}
 	
 	// return pointer to indirect block
@@ -78,95 +169,382 @@ public class Inode {
 		return indirect;
 	}
 	
+	private static boolean extents() {
+		return layout == SuperBlock.EXTENTS;
+	}
+	
+	// number of blocks mapped by direct[]
+	private static int directBlocks() {
+		return (layout == SuperBlock.BLOCK_TREE) ? treeDirect : directSize;
+	}
+	
+	// deepest level of index blocks, 1 for a single indirect block
+	private static int levels() {
+		return (layout == SuperBlock.BLOCK_TREE) ? 3 : 1;
+	}
+	
+	// blocks mapped by a tree of index blocks that is level levels deep
+	private static long span(int level) {
+		long span = 1;
+		for (int i = 0; i < level; i++)
+			span *= pointersPerBlock();
+		return span;
+	}
+	
+	// pointer to the root index block of the tree that is level levels deep
+	private int root(int level) {
+		return (level == 1) ? indirect : direct[treeDirect + level - 2];
+	}
+	
+	private void setRoot(int level, int pointer) {
+		if (level == 1)
+			indirect = pointer;
+		else
+			direct[treeDirect + level - 2] = pointer;
+	}
+	
+	// decodes an index block the first time it is needed, it then stays cached with the inode
+	private int[] loadIndex(int blockNumber) {
+		int[] index = indexes.get(blockNumber);
+		if (index == null)
+		{
+			byte[] indexBlock = new byte[Disk.blockSize];
+			Journal.read(blockNumber, indexBlock);
+			index = new int[pointersPerBlock()];
+			for (int i = 0; i < index.length; i++)
+				index[i] = readPointer(indexBlock, i * pointerBytes());
+			indexes.put(blockNumber, index);
+		}
+		return index;
+	}
+	
+	// starts a new index block with all pointers at -1, written to disk with the inode
+	private void newIndex(int blockNumber) {
+		int[] index = new int[pointersPerBlock()];
+		for (int i = 0; i < index.length; i++)
+			index[i] = -1; // set block pointers to -1
+		indexes.put(blockNumber, index);
+		dirtyIndexes.add(blockNumber);
+	}
+	
+	// writes the index blocks that changed since they were loaded back to disk
+	private void writeIndex() {
+		for (Integer blockNumber : dirtyIndexes)
+		{
+			int[] index = indexes.get(blockNumber);
+			byte[] indexBlock = new byte[Disk.blockSize];
+			for (int i = 0; i < index.length; i++)
+				writePointer(index[i], indexBlock, i * pointerBytes());
+			Journal.write(blockNumber, indexBlock);
+		}
+		dirtyIndexes.clear();
+	}
+	
+	
+	// number of extents held by the inode and its index block
+	private int maxExtents() {
+		return (indirect == -1) ? inlineExtents : inlineExtents + Disk.blockSize / 4;
+	}
+	
+	// the start and length of the k-th extent are held by slots[at] and slots[at + 1]
+	private int[] slotsOf(int k) {
+		return (k < inlineExtents) ? direct : loadIndex(indirect);
+	}
+	
+	private int extentAt(int k) {
+		return (k < inlineExtents) ? k * 2 : (k - inlineExtents) * 2;
+	}
+	
+	// records a change to the slots of the k-th extent
+	private void extentChanged(int k) {
+		if (k >= inlineExtents)
+			dirtyIndexes.add(indirect);
+		dirty = true;
+	}
+	
 	// sets an index block from the block number with all indices starting at -1.
-	// if all of the direct pointers are not in use or the indirect pointer is in use already then false is returned
-	// otherwise the index block is written to the disk and true returned
-	boolean setIndexBlock(short blockNumber) {
-		// check if direct pointers are all used
-		for (int i = 0; i < 11; i++)
+	// the index block becomes the first one missing on the way to the block at offset:
+	// the root of the tree mapping it, or an index block under that root.
+	// if all of the direct pointers are not in use or no index block is missing then false is returned
+	// otherwise true is returned, and the index block goes to disk with the inode
+	synchronized boolean setIndexBlock(int offset, int blockNumber) {
+		// check if direct pointers, or inline extents, are all used
+		for (int i = 0; i < (extents() ? inlineExtents * 2 : directBlocks()); i++)
 		{
 			if (direct[i] == -1)
 				return false;
 		}
-		if (indirect != -1) // indirect pointer cant be in use
+		if (extents())
 		{
+			if (indirect != -1) // indirect pointer cant be in use
+				return false;
+			indirect = blockNumber;
+			newIndex(blockNumber);
+			dirty = true;
+			return true;
+		}
+		
+		long i = offset / Disk.blockSize - directBlocks();
+		int level = 1;
+		while (level <= levels() && i >= span(level))
+			i -= span(level++);
+		if (level > levels())
 			return false;
+		if (root(level) == -1)
+		{
+			setRoot(level, blockNumber);
+			newIndex(blockNumber);
+			dirty = true;
+			return true;
 		}
-		indirect = blockNumber;
-		byte[] indexBlock = new byte[Disk.blockSize]; 
-		for(int i = 0; i < indexBlock.length; i+=2)
+		int current = root(level);
+		int[] index = loadIndex(current);
+		for (int depth = level; depth > 1; depth--)
+		{
+			int slot = (int)(i / span(depth - 1));
+			i %= span(depth - 1);
+			if (index[slot] == -1)
+			{
+				index[slot] = blockNumber;
+				dirtyIndexes.add(current);
+				newIndex(blockNumber);
+				dirty = true;
+				return true;
+			}
+			current = index[slot];
+			index = loadIndex(current);
+		}
+		return false;
+	}
+	
+	// counts the index blocks missing on the way to blocks first to first + n - 1 of the file,
+	// the ones writing them would have setIndexBlock set first
+	// the extent layout's index block depends on where the blocks land and is not counted
+	synchronized int missingIndexBlocks(int first, int n) {
+		if (extents())
+			return 0;
+		int missing = 0;
+		long from = first - directBlocks();
+		long to = first + n - directBlocks();
+		for (int level = 1; level <= levels() && to > 0; from -= span(level), to -= span(level++))
 		{
-			SysLib.short2bytes((short)-1, indexBlock, i); // set block pointers to -1
+			long start = Math.max(from, 0);
+			long end = Math.min(to, span(level));
+			if (start >= end)
+				continue;
+			for (int depth = level; depth > 0; depth--)
+			{
+				for (long node = start / span(depth); node <= (end - 1) / span(depth); node++)
+				{
+					if (indexAt(level, depth, node) == -1)
+						missing++;
+				}
+			}
 		}
-		SysLib.rawwrite(blockNumber, indexBlock);
-		return true;
+		return missing;
+	}
+	
+	// pointer to the node-th index block at depth of the tree that is level levels deep,
+	// counting from the left. -1 if it or an index block above it is missing
+	private int indexAt(int level, int depth, long node) {
+		if (depth == level)
+			return root(level);
+		int parent = indexAt(level, depth + 1, node / pointersPerBlock());
+		return (parent == -1) ? -1 : loadIndex(parent)[(int)(node % pointersPerBlock())];
 	}
 	
 	// finds the target block given the offset into the file
-	// if the target block is not within the scope of the direct pointers, the indirection
-	// block is read to find the index which points to the block
-	int findTargetBlock(int offset) {
-		//SysLib.cerr("Finding target block..\n");
-		//SysLib.cerr("offset = " + offset + "\n");
+	// if the target block is not within the scope of the direct pointers, the tree of index
+	// blocks mapping it is walked down, at most levels() cached index blocks
+	synchronized int findTargetBlock(int offset) {
 		int i = offset / Disk.blockSize;
-		if (i < 11)
-		{
-			//SysLib.cerr("direct[i] = " + direct[i] + "\n");
+		if (extents())
+			return findExtentBlock(i);
+		if (i < directBlocks())
 			return direct[i];
-		}
-		else if (indirect == -1)
-			return -1;
-		
-		byte[] blockData = new byte[Disk.blockSize];
-		SysLib.rawread(indirect, blockData);
-		int j = i - directSize;
-		//SysLib.cerr("Found: " + j);
-		return SysLib.bytes2short(blockData, j * 2);
 		
+		long j = i - directBlocks();
+		for (int level = 1; level <= levels(); j -= span(level++))
+		{
+			if (j >= span(level))
+				continue;
+			int pointer = root(level);
+			for (int depth = level; depth > 0 && pointer != -1; depth--)
+			{
+				pointer = loadIndex(pointer)[(int)(j / span(depth - 1))];
+				j %= span(depth - 1);
+			}
+			return pointer;
+		}
+		return -1;
+	}
+	
+	// finds the i-th block of the file by walking the extents
+	private int findExtentBlock(int i) {
+		int first = 0; // first file block of extent k
+		for (int k = 0; k < maxExtents(); k++)
+		{
+			int[] slots = slotsOf(k);
+			int at = extentAt(k);
+			if (slots[at] == -1)
+				break;
+			int length = slots[at + 1];
+			if (i < first + length)
+				return slots[at] + (i - first);
+			first += length;
+		}
+		return -1;
 	}
 	
 	// gets the offset into the file and the blockNumber to be pointed to
-	// if the offset is beyond the scope of the direct pointers, then the indirect pointer is used
+	// if the offset is beyond the scope of the direct pointers, then the index blocks are used
 	// returns 0 on successfully writing one of the pointers to the block number passed in
 	// if the there is an error in the direct pointer array, -1 or -2 is returned depending on the error
-	// if the indirect pointer is null, -3 is returned to tell the file system to set the index block
-	int setTargetBlock(int offset, short blockNumber) {
+	// if an index block on the way to the pointer is missing, -3 is returned to tell the file system
+	// to set the index block
+	synchronized int setTargetBlock(int offset, int blockNumber) {
 		int i = offset / Disk.blockSize;
-		if (i < 11)
+		if (extents())
+			return setExtentBlock(i, blockNumber);
+		if (i < directBlocks())
 		{
-			if (direct[i] >= 0) // block has been set already
+			if (direct[i] != -1) // block has been set already
 				return -1;
 			if ((i > 0) && direct[i-1] == -1) // previous block in direct pointers is unused
 				return -2;
 			direct[i] = blockNumber;
+			dirty = true;
 			return 0;
 		}
-		if (indirect == -1) // null indirect pointer
-			return -3;
 		
-		byte[] indexBlock = new byte[Disk.blockSize];
-		SysLib.rawread(indirect, indexBlock);
-		int j = i - 11; // index in indirect block
-		if (SysLib.bytes2short(indexBlock, j * 2) > 0) // index is in use
+		long j = i - directBlocks();
+		int level = 1;
+		while (level <= levels() && j >= span(level))
+			j -= span(level++);
+		if (level > levels()) // beyond the deepest tree
+			return -1;
+		if (root(level) == -1) // null root pointer
+			return -3;
+		int current = root(level);
+		int[] index = loadIndex(current);
+		for (int depth = level; depth > 1; depth--)
 		{
-			SysLib.cerr("indexBlock, indirectNumber = " + j + " contents = " + SysLib.bytes2short(indexBlock, j * 2) +"\n");
+			int slot = (int)(j / span(depth - 1));
+			j %= span(depth - 1);
+			if (index[slot] == -1) // missing index block below the root
+				return -3;
+			current = index[slot];
+			index = loadIndex(current);
+		}
+		if (index[(int)j] != -1) // index is in use
+		{
+			SysLib.cerr("indexBlock, indirectNumber = " + j + " contents = " + index[(int)j] + "\n");
 			return -1;
 		}
 		// put the index in the block with the block number
-		SysLib.short2bytes(blockNumber, indexBlock, j * 2);
-		SysLib.rawwrite(indirect, indexBlock);
+		index[(int)j] = blockNumber;
+		dirtyIndexes.add(current);
+		dirty = true;
 		return 0;
 	}
 	
-	// returns the index block to FileSystem.java for deallocation if the indirect pointer is in use
-	byte[] freeIndexBlock() {
-		if (indirect >= 0)
+	// maps the i-th block of the file, which must be the first one not mapped yet
+	// the block extends the last extent if it follows it on disk, and starts a new extent otherwise
+	// returns the same codes as setTargetBlock
+	private int setExtentBlock(int i, int blockNumber) {
+		int mapped = 0;
+		int last = -1; // last extent in use
+		for (int k = 0; k < maxExtents(); k++)
 		{
-			byte[] indexBlock = new byte[Disk.blockSize];
-			SysLib.rawread(indirect, indexBlock);
-			indirect = -1;
-			return indexBlock;
+			int[] slots = slotsOf(k);
+			if (slots[extentAt(k)] == -1)
+				break;
+			mapped += slots[extentAt(k) + 1];
+			last = k;
+		}
+		if (i < mapped) // block has been set already
+			return -1;
+		if (i > mapped) // blocks before it are unmapped
+			return -2;
+		
+		if (last != -1)
+		{
+			int[] slots = slotsOf(last);
+			int at = extentAt(last);
+			int length = slots[at + 1];
+			if (slots[at] + length == blockNumber && length + 1 < maxBlocks) // 0xffff reads back as -1
+			{
+				slots[at + 1] = length + 1;
+				extentChanged(last);
+				return 0;
+			}
+		}
+		int k = last + 1;
+		if (k == inlineExtents && indirect == -1) // inline extents are full
+			return -3;
+		if (k >= maxExtents())
+		{
+			SysLib.cerr("Inode: out of extents\n");
+			return -1;
+		}
+		int[] slots = slotsOf(k);
+		slots[extentAt(k)] = blockNumber;
+		slots[extentAt(k) + 1] = 1;
+		extentChanged(k);
+		return 0;
+	}
+	
+	// unmaps every block of the file and returns their block numbers, the index blocks included,
+	// so FileSystem.java can deallocate them
+	synchronized int[] releaseBlocks() {
+		ArrayList<Integer> blocks = new ArrayList<Integer>();
+		if (extents())
+		{
+			for (int k = 0; k < maxExtents(); k++)
+			{
+				int[] slots = slotsOf(k);
+				int at = extentAt(k);
+				if (slots[at] == -1)
+					break;
+				for (int j = 0; j < slots[at + 1]; j++)
+					blocks.add(slots[at] + j);
+			}
+			if (indirect != -1)
+				blocks.add(indirect);
+		}
+		else
+		{
+			for (int i = 0; i < directBlocks(); i++)
+			{
+				if (direct[i] != -1)
+					blocks.add(direct[i]);
+			}
+			for (int level = 1; level <= levels(); level++)
+				collect(root(level), level, blocks);
+		}
+		
+		for (int i = 0; i < direct.length; i++)
+			direct[i] = -1;
+		indirect = -1;
+		indexes.clear();
+		dirtyIndexes.clear();
+		dirty = true;
+		int[] numbers = new int[blocks.size()];
+		for (int i = 0; i < numbers.length; i++)
+			numbers[i] = blocks.get(i);
+		return numbers;
+	}
+	
+	// adds the blocks of the tree under pointer, which is level levels deep, and its index blocks
+	private void collect(int pointer, int level, ArrayList<Integer> blocks) {
+		if (pointer == -1)
+			return;
+		if (level > 0)
+		{
+			int[] index = loadIndex(pointer);
+			for (int i = 0; i < index.length; i++)
+				collect(index[i], level - 1, blocks);
 		}
-		return null;
+		blocks.add(pointer);
 	}
 }
@@ -0,0 +1,84 @@
+import java.util.HashMap;
+import java.util.TreeSet;
+
+// kernel-wide table of the inodes of open files, keyed by inode number
+// every file table entry of a file shares the one Inode held here, so they all see the same
+// length and block pointers. the inode's count is its reference count: an inode is read from
+// disk when the first entry opens it, and dropped when the last one closes it.
+// changed inodes are only marked dirty. they go to disk when their file is closed, on sync,
+// and before each group commit of the journal, and every time all the dirty inodes sharing
+// an inode block are written with one read and one write of that block
+public class InodeTable {
+	private final static short UNUSED = 0;
+	private final static short READ = 2;
+	private final static short WRITE = 3;
+	private HashMap<Short, Inode> inodes;
+
+	public InodeTable() {
+		inodes = new HashMap<Short, Inode>();
+	}
+
+	// returns the shared inode of iNumber, reading it from disk if no entry holds it
+	public synchronized Inode get(short iNumber) {
+		Inode inode = inodes.get(iNumber);
+		if (inode == null)
+		{
+			inode = new Inode(iNumber);
+			// nobody has the file open, whatever a past session left on disk
+			inode.count = 0;
+			if (inode.flag == READ || inode.flag == WRITE)
+				inode.flag = UNUSED;
+			inodes.put(iNumber, inode);
+		}
+		return inode;
+	}
+
+	// registers a new, empty inode for a file just created as iNumber
+	// it is written at once, so the disk never holds a directory entry without its inode
+	public synchronized Inode create(short iNumber) {
+		Inode inode = new Inode();
+		inodes.put(iNumber, inode);
+		inode.dirty = true;
+		writeBlock(Inode.blockOf(iNumber));
+		return inode;
+	}
+
+	// writes iNumber, along with the other dirty inodes of its block, if it changed
+	public synchronized void flush(short iNumber) {
+		Inode inode = inodes.get(iNumber);
+		if (inode != null && inode.dirty)
+			writeBlock(Inode.blockOf(iNumber));
+	}
+
+	// drops the inode once no entry holds it, writing it back first if it changed
+	public synchronized void release(short iNumber) {
+		Inode inode = inodes.get(iNumber);
+		if (inode == null || inode.count > 0)
+			return;
+		flush(iNumber);
+		inodes.remove(iNumber);
+	}
+
+	// writes back every inode that changed, one inode block at a time
+	public synchronized void sync() {
+		TreeSet<Integer> blocks = new TreeSet<Integer>();
+		for (Short iNumber : inodes.keySet())
+			if (inodes.get(iNumber).dirty)
+				blocks.add(Inode.blockOf(iNumber));
+		for (Integer block : blocks)
+			writeBlock(block);
+	}
+
+	// patches every dirty inode of the given inode block into it with one read and one write
+	private void writeBlock(int block) {
+		byte[] inodeBlock = new byte[Disk.blockSize];
+		Journal.read(block, inodeBlock);
+		for (Short iNumber : inodes.keySet())
+		{
+			Inode inode = inodes.get(iNumber);
+			if (inode.dirty && Inode.blockOf(iNumber) == block)
+				inode.saveTo(inodeBlock, iNumber);
+		}
+		Journal.write(block, inodeBlock);
+	}
+}
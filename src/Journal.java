@@ -0,0 +1,454 @@
+import java.util.*;
+import java.util.zip.CRC32;
+
+// A write-ahead journal for file system metadata: the superblock, inodes,
+// index blocks, the free list and the directory. Metadata block writes are
+// gathered in memory into a running transaction, and transactions are
+// committed in groups, each as one sequential write of a descriptor block,
+// the block images and a commit block into the journal region at the end
+// of the disk. Committed images reach their home blocks lazily, when the
+// journal runs out of room or on checkpoint( ); until then reads are served
+// from memory. Mounting replays the committed transactions that were not
+// checkpointed yet, so a crash never leaves half-written metadata behind.
+//
+// The journal sits on top of the block cache: metadata is read through it
+// and checkpoints write home through it, while the log itself is written
+// straight to the disk. The static methods act on the journal of the
+// mounted file system, and fall back to plain cached I/O when none is
+// mounted.
+public class Journal {
+	private final static int HEADER_MAGIC = 0x4a524e4c; // "JRNL"
+	private final static int DESCRIPTOR_MAGIC = 0x4a444553; // "JDES"
+	private final static int COMMIT_MAGIC = 0x4a434d54; // "JCMT"
+	private final static int commitInterval = 100; // ms between group commits
+	private final static int descriptorEntries = (Disk.blockSize - 16) / 4;
+
+	private static Journal mounted; // journal of the mounted file system
+	private static Runnable beforeCommit; // logs deferred metadata before a group commit
+
+	private int start;        // header block, the log follows it
+	private int logSize;      // blocks in the log
+	private int maxEntries;   // blocks plus revokes in one transaction
+	private int head;         // log position of the next transaction
+	private int tail;         // log position of the oldest live transaction
+	private int used;         // log blocks between tail and head
+	private int sequence;     // sequence number of the next transaction
+	private int tailSequence; // sequence number of the transaction at tail
+	private int activeOps;    // file system operations in progress
+	private boolean committing; // the committer is preparing a commit, operations wait
+
+	// block images of the running transaction, in logging order
+	private LinkedHashMap<Integer, byte[]> running = new LinkedHashMap<Integer, byte[]>();
+	// blocks reused as file data since they were last logged
+	private HashSet<Integer> revoked = new HashSet<Integer>();
+	// committed images not yet written to their home blocks
+	private HashMap<Integer, byte[]> committed = new HashMap<Integer, byte[]>();
+	private Committer committer;
+
+	private Journal(int start, int blocks) {
+		this.start = start;
+		logSize = blocks - 1;
+		maxEntries = Math.min(descriptorEntries, logSize - 2);
+	}
+
+	// the number of blocks to reserve for the journal of a disk
+	static int blocksFor(int totalBlocks) {
+		return Math.max(8, Math.min(256, totalBlocks / 16));
+	}
+
+	// writes an empty journal into blocks [start, start + blocks) and mounts it
+	static void create(int start, int blocks) {
+		unmount();
+		Journal journal = new Journal(start, blocks);
+		journal.sequence = new Random().nextInt() & 0x7fffffff;
+		journal.tailSequence = journal.sequence;
+		journal.writeHeader();
+		journal.startCommitter();
+	}
+
+	// mounts the journal in blocks [start, start + blocks), first replaying
+	// every committed transaction onto the home blocks
+	static void mount(int start, int blocks) {
+		unmount();
+		Journal journal = new Journal(start, blocks);
+		if (!journal.recover())
+		{
+			SysLib.cerr("Journal: no valid journal found, starting an empty one\n");
+			journal.sequence = new Random().nextInt() & 0x7fffffff;
+			journal.tailSequence = journal.sequence;
+			journal.writeHeader();
+		}
+		journal.startCommitter();
+	}
+
+	// drops the mounted journal without writing anything, as format does
+	static void unmount() {
+		Journal journal = mounted;
+		mounted = null;
+		if (journal != null)
+			journal.committer.done = true;
+	}
+
+	// reads a metadata block, seeing every logged update
+	static void read(int blockNumber, byte[] data) {
+		Journal journal = mounted;
+		if (journal == null)
+			SysLib.cread(blockNumber, data);
+		else
+			journal.readBlock(blockNumber, data);
+	}
+
+	// logs a metadata block; it reaches its home block after it commits
+	static void write(int blockNumber, byte[] data) {
+		Journal journal = mounted;
+		if (journal == null)
+			SysLib.cwrite(blockNumber, data);
+		else
+			journal.log(blockNumber, data);
+	}
+
+	// forgets the logged images of blocks about to be written as file data,
+	// so that neither a checkpoint nor a replay overwrites that data
+	static void revoke(int[] blockNumbers) {
+		Journal journal = mounted;
+		if (journal != null)
+			journal.revokeBlocks(blockNumbers);
+	}
+
+	// brackets a file system operation, whose updates the group commit
+	// then keeps within one transaction
+	static void begin() {
+		Journal journal = mounted;
+		if (journal != null)
+			journal.enter();
+	}
+
+	static void end() {
+		Journal journal = mounted;
+		if (journal != null)
+			journal.leave();
+	}
+
+	// has the committer thread run task before each group commit, when no file
+	// system operation is in progress, so updates held back in memory get logged.
+	// operations starting meanwhile wait until the commit is done
+	static void beforeCommit(Runnable task) {
+		beforeCommit = task;
+	}
+
+	// commits the running transaction the way the committer thread does: once the
+	// operations in progress are done, with new ones held off until the before-commit
+	// task has logged what it holds back and the commit is written
+	// must not be called inside an operation, which it would wait for
+	static void commit() {
+		Journal journal = mounted;
+		if (journal != null)
+		{
+			journal.awaitCommit();
+			journal.runBeforeCommit();
+		}
+	}
+
+	// commits, then writes every committed image home and empties the log
+	static void checkpoint() {
+		Journal journal = mounted;
+		if (journal != null)
+			journal.checkpointAll();
+	}
+
+	private synchronized void readBlock(int blockNumber, byte[] data) {
+		byte[] image = running.get(blockNumber);
+		if (image == null)
+			image = committed.get(blockNumber);
+		if (image != null)
+			System.arraycopy(image, 0, data, 0, Disk.blockSize);
+		else
+			SysLib.cread(blockNumber, data);
+	}
+
+	private synchronized void log(int blockNumber, byte[] data) {
+		byte[] image = running.get(blockNumber);
+		if (image == null)
+		{
+			if (running.size() + revoked.size() >= maxEntries)
+				commitRunning(); // the transaction is full
+			image = new byte[Disk.blockSize];
+			running.put(blockNumber, image);
+		}
+		System.arraycopy(data, 0, image, 0, Disk.blockSize);
+	}
+
+	private synchronized void revokeBlocks(int[] blockNumbers) {
+		for (int i = 0; i < blockNumbers.length; i++)
+		{
+			Integer blockNumber = blockNumbers[i];
+			boolean logged = running.remove(blockNumber) != null;
+			if (committed.remove(blockNumber) != null || logged)
+			{
+				if (running.size() + revoked.size() >= maxEntries)
+					commitRunning();
+				revoked.add(blockNumber);
+			}
+		}
+	}
+
+	private synchronized void enter() {
+		while (committing)
+		{
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				SysLib.cerr(e.toString() + "\n");
+			}
+		}
+		activeOps++;
+	}
+
+	private synchronized void leave() {
+		activeOps--;
+		if (activeOps == 0)
+			notifyAll(); // a commit may be waiting for the operations to finish
+	}
+
+	// starts preparing a group commit if no operation is in progress, holding
+	// off new ones until finishCommit; returns false if operations are running
+	// or another commit is being prepared
+	private synchronized boolean startCommit() {
+		if (activeOps > 0 || committing)
+			return false;
+		committing = true;
+		return true;
+	}
+
+	// starts preparing a commit as startCommit does, but waits for its turn and
+	// for the operations in progress, holding off new ones meanwhile
+	private synchronized void awaitCommit() {
+		while (committing)
+		{
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				SysLib.cerr(e.toString() + "\n");
+			}
+		}
+		committing = true;
+		while (activeOps > 0)
+		{
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				SysLib.cerr(e.toString() + "\n");
+			}
+		}
+	}
+
+	// runs the before-commit task, then commits and lets operations go on
+	// no operation can change what the task logs until the commit is done.
+	// the task runs outside the journal lock, as it takes locks of its own
+	// that operations hold while they log
+	private void runBeforeCommit() {
+		try {
+			Runnable task = beforeCommit;
+			if (task != null)
+				task.run();
+		} finally {
+			finishCommit();
+		}
+	}
+
+	private synchronized void finishCommit() {
+		if (!committer.done)
+			commitRunning();
+		committing = false;
+		notifyAll();
+	}
+
+	// writes the running transaction to the log as one vectored command:
+	// descriptor (magic, sequence, image count, revoke count, home blocks,
+	// revoked blocks), the images, then the commit block (magic, sequence,
+	// checksum of everything before it)
+	private synchronized void commitRunning() {
+		if (running.isEmpty() && revoked.isEmpty())
+			return;
+		int images = running.size();
+		if (images + 2 > logSize - used)
+			writeHome(); // make room by checkpointing
+
+		byte[] data = new byte[(images + 2) * Disk.blockSize];
+		SysLib.int2bytes(DESCRIPTOR_MAGIC, data, 0);
+		SysLib.int2bytes(sequence, data, 4);
+		SysLib.int2bytes(images, data, 8);
+		SysLib.int2bytes(revoked.size(), data, 12);
+		int offset = 16;
+		int image = 1;
+		for (Map.Entry<Integer, byte[]> entry : running.entrySet())
+		{
+			SysLib.int2bytes(entry.getKey(), data, offset);
+			offset += 4;
+			System.arraycopy(entry.getValue(), 0, data, image++ * Disk.blockSize, Disk.blockSize);
+		}
+		for (Integer blockNumber : revoked)
+		{
+			SysLib.int2bytes(blockNumber, data, offset);
+			offset += 4;
+		}
+		int commitOffset = (images + 1) * Disk.blockSize;
+		SysLib.int2bytes(COMMIT_MAGIC, data, commitOffset);
+		SysLib.int2bytes(sequence, data, commitOffset + 4);
+		SysLib.int2bytes(checksum(data, commitOffset), data, commitOffset + 8);
+
+		int[] blocks = new int[images + 2];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = logBlock(head + i);
+		SysLib.rawwritev(blocks, data);
+
+		head = (head + blocks.length) % logSize;
+		used += blocks.length;
+		sequence++;
+		for (Integer blockNumber : revoked)
+			committed.remove(blockNumber);
+		committed.putAll(running);
+		running.clear();
+		revoked.clear();
+	}
+
+	private synchronized void checkpointAll() {
+		commitRunning();
+		writeHome();
+	}
+
+	// writes the committed images to their home blocks through the cache,
+	// and the cache to the disk, before marking the log empty
+	private void writeHome() {
+		if (!committed.isEmpty())
+		{
+			Integer[] homes = committed.keySet().toArray(new Integer[0]);
+			Arrays.sort(homes);
+			int[] blocks = new int[homes.length];
+			byte[] data = new byte[homes.length * Disk.blockSize];
+			for (int i = 0; i < homes.length; i++)
+			{
+				blocks[i] = homes[i];
+				System.arraycopy(committed.get(homes[i]), 0, data, i * Disk.blockSize, Disk.blockSize);
+			}
+			SysLib.cwritev(blocks, data);
+			SysLib.csync();
+			committed.clear();
+		}
+		tail = head;
+		tailSequence = sequence;
+		used = 0;
+		writeHeader();
+	}
+
+	// scans the log from its tail, replays every transaction whose commit
+	// block checks out, and leaves the log empty
+	// returns false if the header is not a journal header
+	private boolean recover() {
+		byte[] header = new byte[Disk.blockSize];
+		SysLib.rawread(start, header);
+		if (SysLib.bytes2int(header, 0) != HEADER_MAGIC || SysLib.bytes2int(header, 12) != logSize)
+			return false;
+		tail = SysLib.bytes2int(header, 4);
+		tailSequence = SysLib.bytes2int(header, 8);
+		if (tail < 0 || tail >= logSize)
+			return false;
+
+		TreeMap<Integer, byte[]> replay = new TreeMap<Integer, byte[]>();
+		int position = tail;
+		int expected = tailSequence;
+		int scanned = 0;
+		int transactions = 0;
+		while (scanned < logSize)
+		{
+			byte[] descriptor = new byte[Disk.blockSize];
+			SysLib.rawread(logBlock(position), descriptor);
+			int images = SysLib.bytes2int(descriptor, 8);
+			int revokes = SysLib.bytes2int(descriptor, 12);
+			if (SysLib.bytes2int(descriptor, 0) != DESCRIPTOR_MAGIC || SysLib.bytes2int(descriptor, 4) != expected
+					|| images < 0 || revokes < 0 || images + revokes > descriptorEntries
+					|| scanned + images + 2 > logSize)
+				break;
+
+			byte[] data = new byte[(images + 2) * Disk.blockSize];
+			int[] blocks = new int[images + 1];
+			for (int i = 0; i < blocks.length; i++)
+				blocks[i] = logBlock(position + 1 + i);
+			byte[] rest = new byte[blocks.length * Disk.blockSize];
+			SysLib.rawreadv(blocks, rest);
+			System.arraycopy(descriptor, 0, data, 0, Disk.blockSize);
+			System.arraycopy(rest, 0, data, Disk.blockSize, rest.length);
+			int commitOffset = (images + 1) * Disk.blockSize;
+			if (SysLib.bytes2int(data, commitOffset) != COMMIT_MAGIC || SysLib.bytes2int(data, commitOffset + 4) != expected
+					|| SysLib.bytes2int(data, commitOffset + 8) != checksum(data, commitOffset))
+				break; // torn or never committed
+
+			int offset = 16 + images * 4;
+			for (int i = 0; i < revokes; i++, offset += 4)
+				replay.remove(SysLib.bytes2int(descriptor, offset));
+			for (int i = 0; i < images; i++)
+			{
+				byte[] image = new byte[Disk.blockSize];
+				System.arraycopy(data, (i + 1) * Disk.blockSize, image, 0, Disk.blockSize);
+				replay.put(SysLib.bytes2int(descriptor, 16 + i * 4), image);
+			}
+			position = (position + images + 2) % logSize;
+			scanned += images + 2;
+			expected++;
+			transactions++;
+		}
+
+		head = position;
+		sequence = expected;
+		committed.putAll(replay);
+		writeHome();
+		if (transactions > 0)
+			SysLib.cerr("Journal: replayed " + transactions + " transactions (" + replay.size() + " blocks)\n");
+		return true;
+	}
+
+	private void writeHeader() {
+		byte[] header = new byte[Disk.blockSize];
+		SysLib.int2bytes(HEADER_MAGIC, header, 0);
+		SysLib.int2bytes(tail, header, 4);
+		SysLib.int2bytes(tailSequence, header, 8);
+		SysLib.int2bytes(logSize, header, 12);
+		SysLib.rawwrite(start, header);
+	}
+
+	private int logBlock(int position) {
+		return start + 1 + position % logSize;
+	}
+
+	private static int checksum(byte[] data, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		return (int)crc.getValue();
+	}
+
+	private void startCommitter() {
+		committer = new Committer();
+		committer.setDaemon(true);
+		committer.start();
+		mounted = this;
+	}
+
+	// commits the running transaction every commitInterval ms, between
+	// file system operations
+	private class Committer extends Thread {
+		volatile boolean done = false;
+
+		public void run() {
+			while (!done)
+			{
+				try {
+					Thread.sleep(commitInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (startCommit())
+					runBeforeCommit();
+			}
+		}
+	}
+}
@@ -4,9 +4,9 @@ import java.io.*;
 
 public class Kernel
 {
-   // Interrupt requests
+   // Interrupt requests. There is no disk interrupt: the disk completes
+   // each request through the DiskRequest handle its submitter waits on
    public final static int INTERRUPT_SOFTWARE = 1;  // System calls
-   public final static int INTERRUPT_DISK     = 2;  // Disk interrupts
    public final static int INTERRUPT_IO       = 3;  // Other I/O interrupts
 
    // System calls
@@ -36,6 +36,18 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored disk access
+   public final static int RAWREADV  = 20; // SysLib.rawreadv(int blks[], byte b[])
+   public final static int RAWWRITEV = 21; // SysLib.rawwritev(int blks[], byte b[])
+
+   // Statistics
+   public final static int IOSTAT  = 22; // SysLib.iostat(StringBuffer report)
+
+   // Vectored cache access
+   public final static int CREADV  = 23; // SysLib.creadv(int blks[], byte b[])
+   public final static int CWRITEV = 24; // SysLib.cwritev(int blks[], byte b[])
+   public final static int CPREFETCH = 25; // SysLib.cprefetch(int blks[])
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -50,16 +62,15 @@ public class Kernel
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static DiskArray disk;
    private static Cache cache;
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
-   private static SyncQueue ioQueue;    // I/O queue
    
 
-   private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
+   // Boot options, given as "-name value" pairs to Boot
+   private static String[] bootArgs;
 
    // Standard input
    private static BufferedReader input
@@ -72,23 +83,49 @@ public class Kernel
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
                case BOOT:
+                  bootArgs = ( args != null ) ? ( String[] )args : new String[0];
+
                   // instantiate and start a scheduler
                   scheduler = new Scheduler( ); 
                   scheduler.start( );
 
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  // instantiate and start the disks
+                  DiskProfile profile
+                     = DiskProfile.forName( bootOption( "-profile", "default" ) );
+                  if ( profile == null ) {
+                     System.err.println( "threadOS: unknown disk profile" );
+                     profile = DiskProfile.DEFAULT;
+                  }
+                  int diskBlocks = bootOption( "-blocks", profile.defaultBlocks );
+                  disk = new DiskArray( diskBlocks,
+                     bootOption( "-disks", 1 ),
+                     bootOption( "-stripe", 8 ),
+                     profile, bootOption( "-disk", "heap" ).equals( "mmap" ) );
                   disk.start( );
                   
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // instantiate a cache memory, e.g. java Boot -cache 256
+                  // replacing pages by clock unless, e.g., java Boot -policy 2q
+                  String policy = bootOption( "-policy", Cache.CLOCK );
+                  if ( !Cache.isPolicy( policy ) ) {
+                     System.err.println( "threadOS: unknown cache policy" );
+                     policy = Cache.CLOCK;
+                  }
+                  cache = new Cache( Disk.blockSize,
+                     bootOption( "-cache", 64 ),
+                     bootOption( "-segments", 8 ),
+                     policy,
+                     bootOption( "-frames", "heap" ).equals( "direct" ) );
                   
 
                   // instantiate synchronized queues
-                  ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
                   
-                  fs = new FileSystem(1000);
+                  // files map blocks one by one unless formatted with, e.g.,
+                  // java Boot -layout extents
+                  fs = new FileSystem( disk.getDiskSize( ),
+                     bootOption( "-layout", "blocks" ).equals( "extents" ) ?
+                     SuperBlock.EXTENTS : SuperBlock.BLOCK_TREE,
+                     disk.getTrackSize( ) );
                   return OK;
                case EXEC:
                   return sysExec( ( String[] )args );
@@ -116,23 +153,29 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return waitForDisk( disk.read( param, ( byte[] )args ) );
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  return waitForDisk( disk.write( param, ( byte[] )args ) );
+               case RAWREADV: // read a vector of blocks with one disk command
+                  Object[] readv = ( Object[] )args; // { int blks[], byte b[] }
+                  return waitForDisk( disk.readv( ( int[] )readv[0],
+                                                  ( byte[] )readv[1] ) );
+               case RAWWRITEV: // write a vector of blocks with one disk command
+                  Object[] writev = ( Object[] )args; // { int blks[], byte b[] }
+                  return waitForDisk( disk.writev( ( int[] )writev[0],
+                                                   ( byte[] )writev[1] ) );
+               case IOSTAT:   // report I/O statistics, and reset them if asked
+                  ( ( StringBuffer )args ).append( disk.report( ) );
+                  ( ( StringBuffer )args ).append( cache.report( ) );
+                  if ( param != 0 ) {
+                     disk.resetStats( );
+                     cache.resetStats( );
+                  }
                   return OK;
                case SYNC:     // synchronize disk data to a real file
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  fs.commit( ); // metadata first reaches the journal
+                  cache.sync( );
+                  return waitForDisk( disk.sync( ) );
                case READ:
                   switch ( param ) {
                      case STDIN:
@@ -188,12 +231,23 @@ public class Kernel
                   return cache.read( param, ( byte[] )args ) ? OK : ERROR;
                case CWRITE:  // to be implemented in assignment 4
                   return cache.write( param, ( byte[] )args ) ? OK : ERROR;
-               case CSYNC:   // to be implemented in assignment 4
-                  cache.sync( );
+               case CREADV:  // read a vector of blocks through the cache
+                  Object[] creadv = ( Object[] )args; // { int blks[], byte b[] }
+                  return cache.readv( ( int[] )creadv[0],
+                                      ( byte[] )creadv[1] ) ? OK : ERROR;
+               case CWRITEV: // write a vector of blocks through the cache
+                  Object[] cwritev = ( Object[] )args; // { int blks[], byte b[] }
+                  return cache.writev( ( int[] )cwritev[0],
+                                       ( byte[] )cwritev[1] ) ? OK : ERROR;
+               case CPREFETCH: // start reading blocks into the cache
+                  cache.prefetch( ( int[] )args );
                   return OK;
-               case CFLUSH:  // to be implemented in assignment 4
+               case CSYNC:   // write back the cache, then synchronize the disk
+                  cache.sync( );
+                  return waitForDisk( disk.sync( ) );
+               case CFLUSH:  // write back and empty the cache, then synchronize
                   cache.flush( );
-                  return OK;
+                  return waitForDisk( disk.sync( ) );
                case OPEN:    // to be implemented in project
                   if ((myTcb = scheduler.getMyTcb()) != null) {
                 	  String[] s = (String[])args;
@@ -232,20 +286,69 @@ public class Kernel
                   return (fs.delete((String)args) == true) ? OK : ERROR;
             }
             return ERROR;
-         case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
-
-            return OK;
          case INTERRUPT_IO:   // other I/O interrupts (not implemented)
             return OK;
       }
       return OK;
    }
 
+   // Looking up a boot option, or its default if it was not given
+   private static String bootOption( String name, String defaultValue ) {
+      for ( int i = 0; i + 1 < bootArgs.length; i++ )
+         if ( bootArgs[i].equals( name ) )
+            return bootArgs[i + 1];
+      return defaultValue;
+   }
+
+   // Looking up a numeric boot option, which falls back to its default
+   // with a message unless it is a positive number
+   private static int bootOption( String name, int defaultValue ) {
+      String value = bootOption( name, "" + defaultValue );
+      int number;
+      try {
+         number = Integer.parseInt( value );
+      } catch ( NumberFormatException e ) {
+         number = 0;
+      }
+      if ( number > 0 )
+         return number;
+      System.err.println( "threadOS: bad " + name + " " + value +
+                          ", using " + defaultValue );
+      return defaultValue;
+   }
+
+   // Sleeping until a disk request completes
+   private static int waitForDisk( DiskRequest request ) {
+      if ( request == null )
+         return ERROR;
+      request.waitFor( );
+      return OK;
+   }
+
+   // Asynchronous disk access for kernel code. Each call queues a request
+   // and returns its handle at once; the caller collects the result with
+   // waitFor( ) or polls isDone( ). The buffer must not be touched until
+   // the request is done. A null handle means a wrong block number.
+   static DiskRequest rawreadAsync( int blkNumber, byte b[] ) {
+      return disk.read( blkNumber, b );
+   }
+
+   static DiskRequest rawwriteAsync( int blkNumber, byte b[] ) {
+      return disk.write( blkNumber, b );
+   }
+
+   static DiskRequest rawreadvAsync( int blkNumbers[], byte b[] ) {
+      return disk.readv( blkNumbers, b );
+   }
+
+   static DiskRequest rawwritevAsync( int blkNumbers[], byte b[] ) {
+      return disk.writev( blkNumbers, b );
+   }
+
+   static DiskRequest syncAsync( ) {
+      return disk.sync( );
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
@@ -15,6 +15,8 @@ public class Loader extends Thread
 	SysLib.cout( "?:       print a help message\n" );
 	SysLib.cout( "q:       exit from threadOS\n" );
 	SysLib.cout( "l prog:  load prog\n" );
+	SysLib.cout( "s:       print I/O statistics\n" );
+	SysLib.cout( "s reset: print and reset I/O statistics\n" );
     }
 
     public void run( ) {
@@ -47,6 +49,11 @@ public class Loader extends Thread
 		}
 		SysLib.join( );
 		break;
+	    case 's':
+		StringBuffer report = new StringBuffer( );
+		SysLib.iostat( report, cmdLine.trim( ).equals( "s reset" ) );
+		SysLib.cout( report.toString( ) );
+		break;
 	    case 'r':
 		break;
 	    }
@@ -3,104 +3,552 @@ import java.util.Arrays;
 public class SuperBlock {
 	public int totalBlocks;
 	public int totalInodes;
-	public int freeList;
+	public int bitmapStart;   // first block of the free-space bitmap, right after the superblock
+	public int journalStart;  // first block of the journal, data blocks end before it
+	public int journalBlocks; // blocks in the journal
+	public int bitmapBlocks;  // blocks of the free-space bitmap, data blocks start after it
+	public int layout;        // how inodes map file blocks, BLOCK_MAP, EXTENTS or BLOCK_TREE
+	public int groupBlocks;   // blocks per block group, a whole number of disk tracks
+	public int inodesPerGroup; // inodes in each block group's slice of the inode table, 0 for one table
+	public final static int BLOCK_MAP = 0;
+	public final static int EXTENTS = 1;
+	public final static int BLOCK_TREE = 3; // 2 was a block tree of 16-bit pointers, no longer mounted
+	private int newLayout;  // layout of the file systems format creates
+	private int trackSize;  // blocks per track of the disk
+	private final static int minGroupBlocks = 64; // a block group spans at least this many blocks
 	private int defaultInodes = 64;
+	private int diskSize;   // blocks of the disk
+	private boolean mounted; // false while the disk holds nothing this file system can read
+	private final static int bitsPerBlock = Disk.blockSize * 8;
+	private byte[] bitmap;  // one bit per disk block, set when the block is in use
+	private int freeBlocks; // clear bits between dataStart() and journalStart
+	private int[] groupFree; // free data blocks of each block group
+	private int nextFree;   // where a search without a hint starts, just past the last allocation
+	private int[] pending = new int[64]; // blocks freed by freeLater, not yet clear in the bitmap
+	private int pendingCount;
+	private Freer freer;    // null while no file system is mounted
+	private final static int freeInterval = 200; // ms between batches of deferred frees
 	
-	public SuperBlock(int diskSize) {
+	// the disk is divided into block groups of whole tracks, each with a count of its free blocks
+	// and, at its start, a slice of the inode table. a new file takes an inode in the group with
+	// the most free blocks, so files spread over the disk, and its data is allocated in the group
+	// of its inode, so reading a file seeks little further than its inode.
+	// disks formatted before the table was split keep it in one piece after the superblock
+	public SuperBlock(int diskSize, int newLayout, int trackSize) {
+		this.newLayout = newLayout;
+		this.trackSize = Math.max(trackSize, 1);
+		this.diskSize = diskSize;
+		
 		byte[] superblock = new byte[Disk.blockSize];
 		SysLib.rawread(0, superblock); // read in superblock
 		totalBlocks = SysLib.bytes2int(superblock, 0); // convert first 4 bytes to int for totalBlock retrieval
 		totalInodes = SysLib.bytes2int(superblock, 4);
-		freeList = SysLib.bytes2int(superblock,  8);
+		bitmapStart = SysLib.bytes2int(superblock,  8);
+		journalStart = SysLib.bytes2int(superblock, 12);
+		journalBlocks = SysLib.bytes2int(superblock, 16);
+		bitmapBlocks = SysLib.bytes2int(superblock, 20);
+		layout = SysLib.bytes2int(superblock, 24);
+		groupBlocks = SysLib.bytes2int(superblock, 28);
+		inodesPerGroup = SysLib.bytes2int(superblock, 32);
 		
-		// if the superblock hasn't been formatted yet, format
-		if (totalBlocks != diskSize || totalInodes == 0 || freeList < 2)
+		// a blank disk is formatted. anything else that is not a file system of this disk's size
+		// with a bitmap and a journal, such as one formatted with a linked free list, is left as it
+		// is and not mounted: its files stay on disk until a format is asked for
+		if (blank(superblock))
 			format(defaultInodes);
+		else if (totalBlocks != addressable(layout) || totalInodes <= 0 || !tableFits()
+			|| bitmapBlocks != bitmapBlocksFor(totalBlocks) || journalBlocks <= 0
+			|| journalStart < dataStart() || journalStart + journalBlocks != totalBlocks
+			|| (layout != BLOCK_MAP && layout != EXTENTS && layout != BLOCK_TREE))
+			SysLib.cerr("Superblock: the disk does not hold a file system of its " + diskSize
+				+ " blocks with a bitmap and a journal, not mounting it. format it to use it\n");
+		else
+		{
+			mounted = true;
+			Inode.layout = layout;
+			if (groupBlocks <= 0) // formatted before block groups, which only guide allocation
+				groupBlocks = groupBlocksFor(this.trackSize);
+			placeInodes();
+			// replay what the last session committed, then pick up the result
+			Journal.mount(journalStart, journalBlocks);
+			loadBitmap();
+			startFreer();
+		}
+	}
+	
+	// true when no block of the superblock was ever written
+	private static boolean blank(byte[] superblock) {
+		for (int i = 0; i < superblock.length; i++)
+		{
+			if (superblock[i] != 0)
+				return false;
+		}
+		return true;
+	}
+	
+	// true once the disk holds a file system that was checked or formatted
+	boolean mounted() {
+		return mounted;
+	}
+	
+	// first block after the inode table of a file system with the given number of files,
+	// for disks that keep it in one piece after the superblock
+	private static int inodeEnd(int files) {
+		return (files % 16) == 0 ? files / 16 + 1: files / 16 + 2;
+	}
+	
+	// blocks of the disk a file system of the given layout addresses: all of them for the block
+	// tree, whose block pointers are 32 bits, and at most the 65535 a 16-bit pointer reaches
+	// for the block map and extents
+	private int addressable(int layout) {
+		return (layout == BLOCK_TREE) ? diskSize : Math.min(diskSize, Inode.maxBlocks);
+	}
+	
+	// true if the superblock places the inode table where a file system of its size puts it
+	private boolean tableFits() {
+		if (inodesPerGroup == 0)
+			return bitmapStart == inodeEnd(totalInodes);
+		return bitmapStart == 1 && groupBlocks > 0 && inodesPerGroup > 0
+			&& slicesFit(totalInodes, inodesPerGroup, Disk.blockSize / Inode.size(layout),
+				dataStart(), journalStart, groupBlocks);
+	}
+	
+	// true if the inode table of files inodes fits in slices of inodes inodes, perBlock to a block,
+	// one per block group from the one holding dataStart on: each slice fits in its group and
+	// leaves room for data
+	private static boolean slicesFit(int files, int inodes, int perBlock, int dataStart, int journalStart,
+		int groupBlocks) {
+		int slices = (files + inodes - 1) / inodes;
+		int blocks = (inodes + perBlock - 1) / perBlock;
+		int first = dataStart / groupBlocks;
+		return blocks < groupBlocks
+			&& dataStart + blocks < Math.min((first + 1) * groupBlocks, journalStart)
+			&& Math.max((first + slices - 1) * groupBlocks, dataStart) + blocks < journalStart;
+	}
+	
+	// inodes per slice of the inode table of a new file system with the given number of files,
+	// spread over as many block groups as have room for a slice. 0 if the table does not fit
+	private static int sliceInodes(int files, int perBlock, int dataStart, int journalStart, int groupBlocks) {
+		files = Math.max(files, 1);
+		int groups = (journalStart + groupBlocks - 1) / groupBlocks - dataStart / groupBlocks;
+		for (int slices = Math.min(groups, files); slices > 0; slices--)
+		{
+			int inodes = (files + slices - 1) / slices;
+			if (slicesFit(files, inodes, perBlock, dataStart, journalStart, groupBlocks))
+				return inodes;
+		}
+		return 0;
+	}
+	
+	// first block group holding a slice of the inode table, the one with the first data block
+	private int firstGroup() {
+		return dataStart() / groupBlocks;
+	}
+	
+	// first block of each slice of the inode table
+	private int[] sliceStarts() {
+		if (inodesPerGroup == 0)
+			return new int[] { 1 };
+		int[] starts = new int[(totalInodes + inodesPerGroup - 1) / inodesPerGroup];
+		for (int k = 0; k < starts.length; k++)
+			starts[k] = Math.max((firstGroup() + k) * groupBlocks, dataStart());
+		return starts;
+	}
+	
+	// tells Inode where the inode table of this file system is
+	private void placeInodes() {
+		Inode.placeTable((inodesPerGroup == 0) ? totalInodes : inodesPerGroup, sliceStarts());
 	}
 	
-	public boolean format(int files) {
+	// block group of the slice holding inode iNumber
+	private int groupOf(short iNumber) {
+		return (inodesPerGroup == 0) ? firstGroup() : firstGroup() + iNumber / inodesPerGroup;
+	}
+	
+	// first inode of the slice in the block group with the most free blocks, where a new file goes
+	synchronized short inodeGoal() {
+		int[] starts = sliceStarts();
+		int best = 0;
+		for (int k = 1; k < starts.length; k++)
+		{
+			if (groupFree[firstGroup() + k] > groupFree[firstGroup() + best])
+				best = k;
+		}
+		return (short)(best * inodesPerGroup);
+	}
+	
+	// blocks needed for a bitmap with one bit per disk block
+	private static int bitmapBlocksFor(int blocks) {
+		return (blocks + bitsPerBlock - 1) / bitsPerBlock;
+	}
+	
+	// the smallest whole number of tracks holding minGroupBlocks blocks
+	private static int groupBlocksFor(int trackSize) {
+		return (minGroupBlocks + trackSize - 1) / trackSize * trackSize;
+	}
+	
+	// number of block groups, the last one ends at the journal
+	private int groups() {
+		return (journalStart + groupBlocks - 1) / groupBlocks;
+	}
+	
+	// first data block of a block group
+	private int groupStart(int group) {
+		return Math.min(Math.max(group * groupBlocks, dataStart()), journalStart);
+	}
+	
+	// first block available for file data, the slices of the inode table are marked in use among them
+	int dataStart() {
+		return bitmapStart + bitmapBlocks;
+	}
+	
+	// number of data blocks not in use
+	synchronized int freeBlocks() {
+		return freeBlocks;
+	}
+	
+	// writes a new, empty file system: the superblock, bitmap, inode table slices and journal header
+	// the cost does not depend on the number of data blocks
+	// synchronized with the allocator and the freer thread, which must not touch the bitmap
+	// of the file system being replaced or the one being built
+	public synchronized boolean format(int files) {
 		if (files < 0)
 		{
 			SysLib.cerr("Error in formatting: invalid number of files");
 			return false;
 		}
+		int size = addressable(newLayout);
+		int perGroup = sliceInodes(files, Disk.blockSize / Inode.size(newLayout), 1 + bitmapBlocksFor(size),
+			size - Journal.blocksFor(size), groupBlocksFor(trackSize));
+		if (perGroup == 0)
+		{
+			SysLib.cerr("Error in formatting: too many files for the disk");
+			return false;
+		}
+		if (size < diskSize)
+			SysLib.cerr("Superblock: using " + size + " of " + diskSize + " disk blocks, as many as "
+				+ "16-bit block pointers reach\n");
 		
+		// blocks waiting to be freed belong to the file system being overwritten
+		stopFreer();
+		pendingCount = 0;
+		Journal.unmount(); // everything it holds is about to be overwritten
+		SysLib.flush(); // and so is everything cached, which format writes around
 		byte[] superblock = new byte[Disk.blockSize];
-		totalBlocks = 1000;
+		totalBlocks = size;
 		totalInodes = files;
-		freeList = (files % 16) == 0 ? files / 16 + 1: files / 16 + 2;
+		bitmapStart = 1;
+		bitmapBlocks = bitmapBlocksFor(totalBlocks);
+		journalBlocks = Journal.blocksFor(totalBlocks);
+		journalStart = totalBlocks - journalBlocks;
+		layout = newLayout;
+		Inode.layout = layout;
+		groupBlocks = groupBlocksFor(trackSize);
+		inodesPerGroup = perGroup;
+		placeInodes();
 		
-		// init inodes
+		// the bitmap and the slices of the inode table are written in one vectored command
+		int[] starts = sliceStarts();
+		int perBlock = Disk.blockSize / Inode.size(layout);
+		int sliceBlocks = (inodesPerGroup + perBlock - 1) / perBlock;
+		int[] blocks = new int[bitmapBlocks + starts.length * sliceBlocks];
+		for (int i = 0; i < bitmapBlocks; i++)
+			blocks[i] = bitmapStart + i;
+		for (int k = 0; k < starts.length; k++)
+			for (int i = 0; i < sliceBlocks; i++)
+				blocks[bitmapBlocks + k * sliceBlocks + i] = starts[k] + i;
+		byte[] metadata = new byte[blocks.length * Disk.blockSize];
+		Inode node = new Inode();
+		node.flag = 0;
 		for (int i = 0; i < totalInodes; i++)
-		{
-			Inode node = new Inode();
-			node.flag = 0;
-			node.toDisk((short)i);
-		}
-		// clear all blocks
-		for (int i = freeList; i < totalBlocks; i++)
-		{
-			byte[] block = new byte[Disk.blockSize];
-			//int sum = 0;
-			//for (byte b:block) {
-				//sum |= b;
-			//}
-			//if (sum != 0)
-				//SysLib.cout("block not 0!");
-			
-			SysLib.int2bytes(i+1, block, 0); // set the block number to the first byte for freeList
-			SysLib.rawwrite(i, block);
-		}
+			node.toBytes(metadata, (bitmapBlocks + i / inodesPerGroup * sliceBlocks) * Disk.blockSize
+				+ (i % inodesPerGroup) * Inode.size(layout));
 		
-		SysLib.int2bytes(totalBlocks, superblock, 0);
-		SysLib.int2bytes(totalInodes, superblock, 4);
-		SysLib.int2bytes(freeList, superblock, 8);
+		// everything but the data blocks is in use from the start
+		bitmap = new byte[bitmapBlocks * Disk.blockSize];
+		for (int i = 0; i < dataStart(); i++)
+			setBit(i, true);
+		for (int i = bitmapBlocks; i < blocks.length; i++)
+			setBit(blocks[i], true);
+		for (int i = journalStart; i < bitmap.length * 8; i++)
+			setBit(i, true);
+		countFree();
+		nextFree = dataStart();
+		System.arraycopy(bitmap, 0, metadata, 0, bitmap.length);
+		SysLib.rawwritev(blocks, metadata);
 		
+		// data blocks are left as they are: a block is only ever read after a write that
+		// filled all of it, so whatever it held before allocation is never seen
+		toBytes(superblock);
 		SysLib.rawwrite(0, superblock);
-		SysLib.cerr("Superblock formatted for " + files + " files\n");
+		Journal.create(journalStart, journalBlocks);
+		mounted = true;
+		startFreer();
+		SysLib.cerr("Superblock formatted for " + files + " files"
+			+ (layout == EXTENTS ? " with extents\n" : "\n"));
 		return true;
 	}
 	
 	void sync() {
-		byte[] superblock = new byte[Disk.blockSize];
-		SysLib.int2bytes(totalBlocks, superblock, 0);
-		SysLib.int2bytes(totalInodes, superblock, 4);
-		SysLib.int2bytes(freeList, superblock, 8);
-		SysLib.rawwrite(0, superblock);
+		freePending();
+		log();
 		SysLib.cout("Superblock syncrhonized\n");
 	}
 	
-	// frees a block by zeroing it and writing back to disk
-	// free list pointer is set to the block number
-	public boolean freeBlock(int blockNumber) {
-		if (blockNumber >= 0 && blockNumber < totalBlocks)
+	// serializes the superblock into the first bytes of data
+	private void toBytes(byte[] data) {
+		SysLib.int2bytes(totalBlocks, data, 0);
+		SysLib.int2bytes(totalInodes, data, 4);
+		SysLib.int2bytes(bitmapStart, data, 8);
+		SysLib.int2bytes(journalStart, data, 12);
+		SysLib.int2bytes(journalBlocks, data, 16);
+		SysLib.int2bytes(bitmapBlocks, data, 20);
+		SysLib.int2bytes(layout, data, 24);
+		SysLib.int2bytes(groupBlocks, data, 28);
+		SysLib.int2bytes(inodesPerGroup, data, 32);
+	}
+	
+	// logs the superblock so the change commits with the blocks it describes
+	private void log() {
+		byte[] superblock = new byte[Disk.blockSize];
+		toBytes(superblock);
+		Journal.write(0, superblock);
+	}
+	
+	// reads the bitmap into memory and counts the free data blocks
+	private void loadBitmap() {
+		bitmap = new byte[bitmapBlocks * Disk.blockSize];
+		byte[] block = new byte[Disk.blockSize];
+		for (int i = 0; i < bitmapBlocks; i++)
+		{
+			Journal.read(bitmapStart + i, block);
+			System.arraycopy(block, 0, bitmap, i * Disk.blockSize, Disk.blockSize);
+		}
+		countFree();
+		nextFree = dataStart();
+	}
+	
+	// counts the free data blocks, in all and per block group
+	private void countFree() {
+		freeBlocks = 0;
+		groupFree = new int[groups()];
+		for (int i = dataStart(); i < journalStart; i++)
+		{
+			if (!isSet(i))
+			{
+				freeBlocks++;
+				groupFree[i / groupBlocks]++;
+			}
+		}
+	}
+	
+	private boolean isSet(int blockNumber) {
+		return (bitmap[blockNumber / 8] & (1 << (blockNumber % 8))) != 0;
+	}
+	
+	private void setBit(int blockNumber, boolean inUse) {
+		if (inUse)
+			bitmap[blockNumber / 8] |= (1 << (blockNumber % 8));
+		else
+			bitmap[blockNumber / 8] &= ~(1 << (blockNumber % 8));
+	}
+	
+	// logs the bitmap block holding the bit of blockNumber
+	private void logBitmap(int blockNumber) {
+		int block = blockNumber / bitsPerBlock;
+		Journal.write(bitmapStart + block,
+			Arrays.copyOfRange(bitmap, block * Disk.blockSize, (block + 1) * Disk.blockSize));
+	}
+	
+	// frees a block by clearing its bit in the bitmap
+	// returns false if the block is not a data block in use
+	public synchronized boolean freeBlock(int blockNumber) {
+		if (blockNumber < dataStart() || blockNumber >= journalStart || !isSet(blockNumber))
+			return false;
+		setBit(blockNumber, false);
+		logBitmap(blockNumber);
+		freeBlocks++;
+		groupFree[blockNumber / groupBlocks]++;
+		return true;
+	}
+	
+	// schedules blocks to be freed in the background and returns without waiting
+	// the freer thread returns them to the bitmap in batches
+	public synchronized void freeLater(int[] blocks) {
+		if (pendingCount + blocks.length > pending.length)
+			pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + blocks.length));
+		System.arraycopy(blocks, 0, pending, pendingCount, blocks.length);
+		pendingCount += blocks.length;
+	}
+	
+	// frees every block scheduled by freeLater, in block order so each bitmap block
+	// changed is logged once. the file system runs it before each commit, so the
+	// bitmap reaches the log with the inodes that released the blocks
+	synchronized void freePending() {
+		if (pendingCount == 0)
+			return;
+		int[] blocks = Arrays.copyOf(pending, pendingCount);
+		pendingCount = 0;
+		Arrays.sort(blocks);
+		for (int i = 0; i < blocks.length; i++)
 		{
-			byte[] block = new byte[Disk.blockSize];
-			// zero out block
-			for (int i = 0; i < block.length; i++)
-				block[i] = 0;
-			SysLib.int2bytes(freeList, block, 0); // read freeList pointer into first offset of block
-			SysLib.rawwrite(blockNumber, block); // write the block number
-			freeList = blockNumber; // set the freelist
-			return true;
+			if (blocks[i] >= dataStart() && blocks[i] < journalStart && isSet(blocks[i]))
+			{
+				setBit(blocks[i], false);
+				freeBlocks++;
+				groupFree[blocks[i] / groupBlocks]++;
+			}
+			if (i == blocks.length - 1 || blocks[i + 1] / bitsPerBlock != blocks[i] / bitsPerBlock)
+				logBitmap(blocks[i]);
 		}
-		return false;
 	}
 	
-	// finds a free block from the freeList pointer and returns it if valid, increments freeList to next free block
+	private void startFreer() {
+		freer = new Freer();
+		freer.setDaemon(true);
+		freer.start();
+	}
+	
+	// stops the freer thread of the mounted file system, as format unmounts it
+	private void stopFreer() {
+		if (freer != null)
+			freer.done = true;
+		freer = null;
+	}
+	
+	// returns deferred frees to the bitmap every freeInterval ms, until its file system is unmounted
+	private class Freer extends Thread {
+		volatile boolean done = false;
+		
+		public void run() {
+			while (!done)
+			{
+				try {
+					Thread.sleep(freeInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				synchronized (SuperBlock.this) {
+					if (!done)
+						freePending();
+				}
+			}
+		}
+	}
+	
+	// allocates the first free data block after the last one allocated
+	// returns -1 when no block is free
 	public int getFreeBlock() {
-		int freeBlock = freeList;
-		if (freeBlock != -1 && freeBlock < totalBlocks) // freeList pointer is valid
+		return getFreeBlock(-1);
+	}
+	
+	// allocates the first free data block after near, see allocate
+	// returns -1 when no block is free
+	public int getFreeBlock(int near) {
+		int[] blocks = allocate(1, near);
+		return (blocks == null) ? -1 : blocks[0];
+	}
+	
+	// allocates n blocks for the file with inode iNumber that has none before them, in the block
+	// group holding its inode or, when that one has fewer than n free blocks, the next group that
+	// has them. full groups are skipped without scanning their bitmap
+	// returns null, allocating nothing, when fewer than n blocks are free
+	public synchronized int[] allocateFor(short iNumber, int n) {
+		int home = groupOf(iNumber);
+		for (int i = 0; i < groupFree.length; i++)
 		{
-			byte[] data = new byte[Disk.blockSize];
-			SysLib.rawread(freeBlock, data); // read freeBlock from list into array
-			
-			freeList = SysLib.bytes2int(data, 0); // set freeList to next free block
-			SysLib.int2bytes(0, data, 0);
-			SysLib.rawwrite(freeBlock, data);
+			int g = (home + i) % groupFree.length;
+			if (groupFree[g] >= n)
+				return allocateFrom(n, groupStart(g));
 		}
-		return freeBlock;
+		return allocateFrom(n, groupStart(home));
 	}
 	
-
+	// allocates n data blocks in one call and returns them in ascending order where possible
+	// the blocks are the first run of n free blocks after near, wrapping around to the start of
+	// the data blocks, so a file growing from near stays contiguous on disk. without such a run
+	// they are the first n free blocks after near.
+	// a negative near continues after the last block allocated
+	// returns null, allocating nothing, when fewer than n blocks are free
+	public synchronized int[] allocate(int n, int near) {
+		return allocateFrom(n, (near >= dataStart() && near < journalStart) ? near + 1 : nextFree);
+	}
+	
+	// allocates n data blocks, searching from start as allocate does from near
+	private synchronized int[] allocateFrom(int n, int start) {
+		if (n > freeBlocks) // the blocks may be waiting to be freed
+			freePending();
+		if (n <= 0 || n > freeBlocks)
+			return null;
+		int[] blocks = new int[n];
+		int run = findRun(start, journalStart, n);
+		if (run == -1)
+			run = findRun(dataStart(), start, n);
+		if (run != -1)
+		{
+			for (int i = 0; i < n; i++)
+				blocks[i] = run + i;
+		}
+		else
+		{
+			int next = start;
+			for (int i = 0; i < n; i++)
+			{
+				blocks[i] = findClear(next, journalStart);
+				if (blocks[i] == -1)
+					blocks[i] = findClear(dataStart(), journalStart);
+				setBit(blocks[i], true); // so the next search skips it
+				next = blocks[i] + 1;
+			}
+		}
+		
+		for (int i = 0; i < n; i++)
+		{
+			setBit(blocks[i], true);
+			groupFree[blocks[i] / groupBlocks]--;
+			// a bitmap block is logged once for all the consecutive blocks it covers
+			if (i == n - 1 || blocks[i + 1] / bitsPerBlock != blocks[i] / bitsPerBlock)
+				logBitmap(blocks[i]);
+		}
+		freeBlocks -= n;
+		nextFree = blocks[n - 1] + 1;
+		return blocks;
+	}
+	
+	// returns the first block of a run of n clear bits starting in [from, to) and ending
+	// before journalStart, -1 if there is none
+	private int findRun(int from, int to, int n) {
+		int i = from;
+		while (i < to)
+		{
+			int first = findClear(i, to);
+			if (first == -1 || first + n > journalStart)
+				return -1;
+			int end = first + 1;
+			while (end < first + n && !isSet(end))
+				end++;
+			if (end == first + n)
+				return first;
+			i = end + 1; // end is in use
+		}
+		return -1;
+	}
+	
+	// returns the first clear bit in [from, to), -1 if there is none
+	// whole bytes of blocks in use are skipped at once
+	private int findClear(int from, int to) {
+		int i = from;
+		while (i < to)
+		{
+			if (i % 8 == 0 && bitmap[i / 8] == (byte)0xff)
+			{
+				i += 8;
+				continue;
+			}
+			if (!isSet(i))
+				return i;
+			i++;
+		}
+		return -1;
+	}
 }
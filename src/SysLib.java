@@ -16,6 +16,11 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    public static int boot( String args[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, args );
+    }
+
     public static int exit( ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -26,11 +31,6 @@ public class SysLib {
 				 Kernel.SLEEP, milliseconds, null );
     }
 
-    public static int disk( ) {
-	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
-				 0, 0, null );
-    }
-
     public static int cin( StringBuffer s ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.READ, 0, s );
@@ -56,11 +56,48 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // reads blkNumbers[i] into b[i * 512], all in one disk command
+    public static int rawreadv( int blkNumbers[], byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // reads b.length / 512 consecutive blocks starting at blkNumber
+    public static int rawreadv( int blkNumber, byte[] b ) {
+	return rawreadv( blockRun( blkNumber, b.length / 512 ), b );
+    }
+
+    // writes b[i * 512] to blkNumbers[i], all in one disk command
+    public static int rawwritev( int blkNumbers[], byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // writes b.length / 512 consecutive blocks starting at blkNumber
+    public static int rawwritev( int blkNumber, byte[] b ) {
+	return rawwritev( blockRun( blkNumber, b.length / 512 ), b );
+    }
+
+    private static int[] blockRun( int blkNumber, int count ) {
+	int[] blkNumbers = new int[ count ];
+	for ( int i = 0; i < count; i++ )
+	    blkNumbers[i] = blkNumber + i;
+	return blkNumbers;
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
     }
 
+    // appends the I/O statistics to report, then resets them if reset
+    public static int iostat( StringBuffer report, boolean reset ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.IOSTAT, reset ? 1 : 0, report );
+    }
+
     public static int cread( int blkNumber, byte[] b ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CREAD, blkNumber, b );
@@ -71,6 +108,26 @@ public class SysLib {
 				 Kernel.CWRITE, blkNumber, b );
     }
 
+    // reads blkNumbers[i] into b[i * 512] through the cache
+    public static int creadv( int blkNumbers[], byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // writes b[i * 512] to blkNumbers[i] through the cache
+    public static int cwritev( int blkNumbers[], byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // starts reading blkNumbers into the cache, without waiting for them
+    public static int cprefetch( int blkNumbers[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPREFETCH, 0, blkNumbers );
+    }
+
     public static int flush( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CFLUSH, 0, null );
@@ -0,0 +1,254 @@
+// Tests the free-space bitmap and the deferred freeing of blocks: a file
+// filling the disk must get every data block the bitmap has, and again
+// after it is deleted or rewritten, before the freer thread has caught up
+// or after a crash that follows the delete.
+// Run it twice:
+//   l TestAlloc              fills the disk, deletes and rewrites, then
+//                            deletes, syncs and stops threadOS at once
+//   java Boot again
+//   l TestAlloc recover      fills the disk once more
+class TestAlloc extends Thread {
+  final static int FILES = 48;
+  final static int TREE_DIRECT = 11; // direct blocks of the block tree layout
+  final static int POINTERS = 128;   // block pointers in an index block
+  final static int INLINE_EXTENTS = 5; // extents held in the inode itself
+  final String phase;
+  int fd;
+  int size;
+  int capacity; // bytes a file filling the disk holds
+  int totalBlocks; // of the disk, as the superblock has it
+
+  public TestAlloc( String args[] ) {
+    phase = args[0];
+  }
+
+  public TestAlloc( ) {
+    phase = "fill";
+  }
+
+  public void run( ) {
+    if ( phase.equals( "recover" ) ) {
+      if ( test6( ) ) // fill the disk after the crash
+        SysLib.cout("Correct behavior of freeing across a crash......2\n");
+      SysLib.cout( "Test completed\n" );
+      SysLib.exit( );
+      return;
+    }
+
+    if ( test1( ) ) // fill the disk with "a"
+      SysLib.cout("Correct behavior of counting free blocks........2\n");
+    if ( test2( ) ) // delete "a" and fill the disk with "b" at once
+      SysLib.cout("Correct behavior of reusing deferred frees......2\n");
+    if ( test3( ) ) // rewrite "b" three times
+      SysLib.cout("Correct behavior of rewriting without leaks.....2\n");
+    if ( test4( ) ) // format for too many files
+      SysLib.cout("Correct behavior of rejecting a format..........2\n");
+    if ( test5( ) ) { // delete "b" and sync
+      SysLib.cout("Correct behavior of deleting a full file........2\n");
+      SysLib.cout( "crashing: boot again and run \"l TestAlloc recover\"\n" );
+      // a power failure right after the sync, before the freer runs
+      Runtime.getRuntime( ).halt( 1 );
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // writes name one block at a time until the disk is full
+  // returns the bytes written
+  private int fill( String name ) {
+    fd = SysLib.open( name, "w" );
+    byte[] block = new byte[512];
+    int written = 0;
+    while ( SysLib.write( fd, block ) == 512 )
+      written += 512;
+    SysLib.close( fd );
+    return written;
+  }
+
+  // index blocks of a subtree mapping the given data blocks, where
+  // each pointer of its root maps span of them
+  private static int indexBlocks( int blocks, int span ) {
+    int index = 1;
+    if ( span > 1 )
+      for ( ; blocks > 0; blocks -= span )
+        index += indexBlocks( Math.min( blocks, span ), span / POINTERS );
+    return index;
+  }
+
+  // blocks a file of the given data blocks takes in the block tree:
+  // its data plus the single, double and triple indirect index blocks
+  // mapping them
+  private static int treeBlocks( int blocks ) {
+    int index = 0;
+    int left = blocks - TREE_DIRECT;
+    for ( int span = 1; left > 0; span *= POINTERS ) {
+      index += indexBlocks( Math.min( left, span * POINTERS ), span );
+      left -= span * POINTERS;
+    }
+    return blocks + index;
+  }
+
+  // data blocks of the largest file that fits in free blocks, split
+  // in runs of contiguous blocks: with extents, more runs than the
+  // inode holds take an index block
+  private static int fits( int free, int runs, boolean tree ) {
+    int blocks = free;
+    while ( tree && treeBlocks( blocks ) > free )
+      blocks--;
+    if ( !tree && runs > INLINE_EXTENTS )
+      blocks--;
+    return blocks;
+  }
+
+  // runs of free blocks left between the slices of the inode table
+  // after format, each slice starting a block group
+  private static int freeRuns( int dataStart, int journalStart,
+                               int groupBlocks, int slices,
+                               int sliceBlocks ) {
+    int runs = 0;
+    int end = dataStart; // of the last slice
+    for ( int k = 0; k < slices; k++ ) {
+      int start = Math.max( ( dataStart / groupBlocks + k ) * groupBlocks,
+                            dataStart );
+      if ( start > end )
+        runs++;
+      end = start + sliceBlocks;
+    }
+    return end < journalStart ? runs + 1 : runs;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: fill the disk with \"a\"........" );
+    SysLib.format( FILES );
+    fd = SysLib.open( "capacity", "w+" );
+    SysLib.write( fd, new byte[4] );
+    SysLib.close( fd );
+    fd = SysLib.open( "/", "r" );
+    int directoryBlocks = ( SysLib.fsize( fd ) + 511 ) / 512;
+    SysLib.close( fd );
+
+    // every data block is free but those of the inode table, the
+    // directory and "capacity"
+    byte[] superblock = new byte[512];
+    SysLib.rawread( 0, superblock );
+    totalBlocks = SysLib.bytes2int( superblock, 0 );
+    int totalInodes = SysLib.bytes2int( superblock, 4 );
+    int dataStart = SysLib.bytes2int( superblock, 8 ) +
+      SysLib.bytes2int( superblock, 20 );
+    int journalStart = SysLib.bytes2int( superblock, 12 );
+    int layout = SysLib.bytes2int( superblock, 24 );
+    int groupBlocks = SysLib.bytes2int( superblock, 28 );
+    int inodesPerGroup = SysLib.bytes2int( superblock, 32 );
+    if ( ( layout != 1 && layout != 3 ) || groupBlocks <= 0 ||
+         inodesPerGroup <= 0 ) {
+      SysLib.cout( "layout = " + layout + ", inodes per group = " +
+                   inodesPerGroup + " (wrong), the test needs a block " +
+                   "tree or extents with the inode table in slices\n" );
+      return false;
+    }
+    boolean tree = layout == 3;
+    int perBlock = 512 / ( tree ? 64 : 32 );
+    int slices = ( totalInodes + inodesPerGroup - 1 ) / inodesPerGroup;
+    int sliceBlocks = ( inodesPerGroup + perBlock - 1 ) / perBlock;
+    int free = journalStart - dataStart - slices * sliceBlocks -
+      directoryBlocks - 1;
+    int runs = freeRuns( dataStart, journalStart, groupBlocks, slices,
+                         sliceBlocks );
+
+    capacity = fill( "a" );
+    if ( capacity != fits( free, runs, tree ) * 512 ) {
+      SysLib.cout( "capacity = " + capacity + ", " + free +
+                   " blocks free (wrong)\n" );
+      return false;
+    }
+    byte[] buf = new byte[4];
+    SysLib.int2bytes( capacity, buf, 0 );
+    fd = SysLib.open( "capacity", "w+" );
+    SysLib.write( fd, buf );
+    SysLib.close( fd );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: delete \"a\" and fill with \"b\"..." );
+    // the freer has not returned the blocks of "a" yet: the allocator
+    // must take them itself once the bitmap runs out
+    SysLib.delete( "a" );
+    size = fill( "b" );
+    if ( size != capacity ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: rewrite \"b\" three times......." );
+    for ( int i = 0; i < 3; i++ ) {
+      size = fill( "b" );
+      if ( size != capacity ) {
+        SysLib.cout( "size = " + size + " (wrong)\n" );
+        return false;
+      }
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: format( too many files )......." );
+    // more inodes than the disk has room for: the format must fail
+    // before it touches the mounted file system
+    if ( SysLib.format( totalBlocks * 16 ) != -1 ) {
+      SysLib.cout( "format succeeded (wrong)\n" );
+      return false;
+    }
+    fd = SysLib.open( "capacity", "r" );
+    byte[] buf = new byte[4];
+    size = SysLib.read( fd, buf );
+    SysLib.close( fd );
+    if ( size != 4 || SysLib.bytes2int( buf, 0 ) != capacity ) {
+      SysLib.cout( "\"capacity\" lost (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: delete \"b\" and sync............" );
+    if ( SysLib.delete( "b" ) != 0 ) {
+      SysLib.cout( "delete failed (wrong)\n" );
+      return false;
+    }
+    SysLib.sync( );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test6( ) {
+    //.............................................."
+    SysLib.cout( "6: fill the disk with \"c\"........" );
+    fd = SysLib.open( "capacity", "r" );
+    byte[] buf = new byte[4];
+    SysLib.read( fd, buf );
+    SysLib.close( fd );
+    capacity = SysLib.bytes2int( buf, 0 );
+    // the blocks of "b" were freed by the transaction that deleted it
+    size = fill( "c" );
+    if ( size != capacity ) {
+      SysLib.cout( "size = " + size + ", capacity = " + capacity +
+                   " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
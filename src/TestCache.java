@@ -0,0 +1,199 @@
+// Tests the block cache under concurrent use: several workers write their
+// own blocks, one at a time or as vectors large enough to go past the
+// cache, while reading, and prefetching, everyone's blocks. There are
+// three times as many blocks as the default cache holds, so reads miss,
+// and pages are evicted, while the same blocks are being written.
+// It formats the disk first and uses the last free data blocks before the
+// journal, as the bitmap of the new file system shows them. The races it
+// looks for need reads that take a while, so it is meant for the default
+// disk, where it runs for about a minute and a half.
+//   l TestCache
+class TestCache extends Thread {
+  final static int FILES = 48;
+  final static int WORKERS = 4;
+  final static int BLOCKS = 192;
+  final static int ROUNDS = 6;
+  static int torn;    // blocks read with parts of two different writes
+  static int stale;   // blocks read older than their worker's own last write
+  static int used[];  // the blocks used, free data blocks after format
+  final int worker;   // -1 for the test itself
+
+  public TestCache( String args[] ) {
+    worker = Integer.parseInt( args[1] );
+  }
+
+  public TestCache( ) {
+    worker = -1;
+  }
+
+  public void run( ) {
+    if ( worker >= 0 ) {
+      work( );
+      SysLib.exit( );
+      return;
+    }
+
+    if ( test1( ) ) // workers read and write concurrently
+      SysLib.cout("Correct behavior of concurrent cache access.....2\n");
+    if ( test2( ) ) // the last writes are on disk after a flush
+      SysLib.cout("Correct behavior of writing the cache back......2\n");
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private static synchronized void count( boolean isTorn ) {
+    if ( isTorn )
+      torn++;
+    else
+      stale++;
+  }
+
+  // the block of round: its number, the round, then one byte repeated
+  private static void fill( byte[] buf, int offset, int blkNumber,
+                            int round ) {
+    SysLib.int2bytes( blkNumber, buf, offset );
+    SysLib.int2bytes( round, buf, offset + 4 );
+    for ( int i = 8; i < 512; i++ )
+      buf[offset + i] = ( byte )( blkNumber * 31 + round );
+  }
+
+  // the round of a block written by fill, or -1 if it is torn
+  private static int roundOf( byte[] buf, int offset, int blkNumber ) {
+    int round = SysLib.bytes2int( buf, offset + 4 );
+    if ( SysLib.bytes2int( buf, offset ) != blkNumber ||
+         round < 0 || round >= ROUNDS )
+      return -1;
+    for ( int i = 8; i < 512; i++ )
+      if ( buf[offset + i] != ( byte )( blkNumber * 31 + round ) )
+        return -1;
+    return round;
+  }
+
+  // checks used[k] read in round: torn, or older than this worker's write
+  private void check( byte[] buf, int offset, int k, int round ) {
+    int seen = roundOf( buf, offset, used[k] );
+    if ( seen == -1 )
+      count( true );
+    else if ( k % WORKERS == worker && seen != round )
+      count( false );
+  }
+
+  // each round writes this worker's blocks, every other round as one
+  // vector past the cache, then reads all of the blocks in an order of
+  // its own, now and then prefetching or reading a vector ahead
+  private void work( ) {
+    int mine = BLOCKS / WORKERS;
+    int blocks[] = new int[mine];
+    byte[] vector = new byte[mine * 512];
+    byte[] buf = new byte[512];
+    byte[] eight = new byte[8 * 512];
+    for ( int round = 0; round < ROUNDS; round++ ) {
+      for ( int i = 0; i < mine; i++ ) {
+        blocks[i] = used[i * WORKERS + worker];
+        fill( vector, i * 512, blocks[i], round );
+        if ( round % 2 == 0 ) {
+          fill( buf, 0, blocks[i], round );
+          SysLib.cwrite( blocks[i], buf );
+        }
+      }
+      if ( round % 2 == 1 )
+        SysLib.cwritev( blocks, vector );
+
+      for ( int k = 0; k < BLOCKS; k++ ) {
+        int next = ( k * 7 + worker * 13 + round ) % BLOCKS;
+        if ( k % 16 == 0 && next + 8 <= BLOCKS ) {
+          int ahead[] = new int[8];
+          for ( int i = 0; i < 8; i++ )
+            ahead[i] = used[next + i];
+          if ( k % 32 == 0 )
+            SysLib.cprefetch( ahead );
+          else {
+            SysLib.creadv( ahead, eight );
+            for ( int i = 0; i < 8; i++ )
+              check( eight, i * 512, next + i, round );
+          }
+        }
+        SysLib.cread( used[next], buf );
+        check( buf, 0, next, round );
+      }
+    }
+  }
+
+  // the last BLOCKS free blocks before the journal, or null
+  private static int[] freeBlocks( ) {
+    byte[] superblock = new byte[512];
+    SysLib.rawread( 0, superblock );
+    int totalBlocks = SysLib.bytes2int( superblock, 0 );
+    int bitmapStart = SysLib.bytes2int( superblock, 8 );
+    int journalStart = SysLib.bytes2int( superblock, 12 );
+    if ( bitmapStart <= 0 || journalStart <= bitmapStart ||
+         journalStart > totalBlocks )
+      return null;
+    int blocks[] = new int[BLOCKS];
+    int found = 0;
+    byte[] bitmap = new byte[512];
+    int loaded = -1;
+    for ( int blk = journalStart - 1; blk > bitmapStart && found < BLOCKS;
+          blk-- ) {
+      if ( blk / 4096 != loaded ) {
+        loaded = blk / 4096;
+        SysLib.rawread( bitmapStart + loaded, bitmap );
+      }
+      int bit = blk % 4096;
+      if ( ( bitmap[bit / 8] & ( 1 << ( bit % 8 ) ) ) == 0 )
+        blocks[BLOCKS - ++found] = blk;
+    }
+    return found == BLOCKS ? blocks : null;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: " + WORKERS + " workers read and write blocks..." );
+    SysLib.format( FILES );
+    used = freeBlocks( );
+    if ( used == null ) {
+      SysLib.cout( "fewer than " + BLOCKS + " free data blocks after " +
+                   "format (wrong), the disk is too small for the test\n" );
+      return false;
+    }
+    torn = 0;
+    stale = 0;
+    byte[] buf = new byte[512];
+    for ( int i = 0; i < BLOCKS; i++ ) {
+      fill( buf, 0, used[i], 0 );
+      SysLib.cwrite( used[i], buf );
+    }
+    for ( int i = 0; i < WORKERS; i++ )
+      SysLib.exec( SysLib.stringToArgs( "TestCache worker " + i ) );
+    for ( int i = 0; i < WORKERS; i++ )
+      SysLib.join( );
+    if ( torn > 0 || stale > 0 ) {
+      SysLib.cout( torn + " torn and " + stale + " stale reads (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: flush and read the disk........" );
+    if ( used == null ) {
+      SysLib.cout( "no blocks were written (wrong)\n" );
+      return false;
+    }
+    SysLib.flush( );
+    byte[] buf = new byte[512];
+    for ( int i = 0; i < BLOCKS; i++ ) {
+      SysLib.rawread( used[i], buf );
+      int round = roundOf( buf, 0, used[i] );
+      if ( round != ROUNDS - 1 ) {
+        SysLib.cout( "block " + used[i] + " round = " + round +
+                     " (wrong)\n" );
+        return false;
+      }
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
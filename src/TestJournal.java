@@ -0,0 +1,196 @@
+// Tests that mounting replays the metadata the journal committed before a
+// crash, and ignores a transaction whose commit block does not check out.
+// Run it twice:
+//   l TestJournal            writes a file, commits its metadata with sync,
+//                            appends a torn transaction to the log and
+//                            stops threadOS without writing anything home
+//   java Boot again
+//   l TestJournal recover    checks what the mount replayed
+class TestJournal extends Thread {
+  final static int FILES = 48;
+  final static int SIZE = 512 * 20; // past the direct blocks, so an index block is logged too
+  final static int DESCRIPTOR_MAGIC = 0x4a444553;
+  final static int COMMIT_MAGIC = 0x4a434d54;
+  final String phase;
+  int fd;
+  int size;
+
+  public TestJournal( String args[] ) {
+    phase = args[0];
+  }
+
+  public TestJournal( ) {
+    phase = "crash";
+  }
+
+  public void run( ) {
+    if ( phase.equals( "recover" ) ) {
+      if ( test3( ) ) // the superblock the torn transaction zeroes is intact
+        SysLib.cout("Correct behavior of ignoring a torn commit......2\n");
+      if ( test4( ) ) // "journal" reads back as written
+        SysLib.cout("Correct behavior of replaying the journal.......2\n");
+      SysLib.cout( "Test completed\n" );
+      SysLib.exit( );
+      return;
+    }
+
+    if ( test1( ) ) // write "journal" and commit it with sync
+      SysLib.cout("Correct behavior of committing metadata.........2\n");
+    if ( test2( ) ) { // append a torn transaction to the log
+      SysLib.cout("Correct behavior of tearing a commit............2\n");
+      SysLib.cout( "crashing: boot again and run \"l TestJournal recover\"\n" );
+      // a power failure: no sync, no checkpoint, nothing written home
+      Runtime.getRuntime( ).halt( 1 );
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private static byte pattern( int i ) {
+    return ( byte )( i * 13 + i / 512 );
+  }
+
+  // counts the inodes whose home block on disk gives them length. the inode
+  // table is split into slices of inodesPerGroup inodes, one at the start of
+  // each block group from the one holding the first data block on
+  private int homeInodes( int length ) {
+    byte[] superblock = new byte[512];
+    SysLib.rawread( 0, superblock );
+    int totalInodes = SysLib.bytes2int( superblock, 4 );
+    int dataStart = SysLib.bytes2int( superblock, 8 ) +
+      SysLib.bytes2int( superblock, 20 );
+    int groupBlocks = SysLib.bytes2int( superblock, 28 );
+    int perGroup = SysLib.bytes2int( superblock, 32 );
+    // block tree inodes have 32-bit pointers and take 64 bytes
+    int inodeSize = SysLib.bytes2int( superblock, 24 ) == 3 ? 64 : 32;
+    byte[] inodes = new byte[512];
+    int found = 0;
+    for ( int i = 0; i < totalInodes; i++ ) {
+      int slice = Math.max( ( dataStart / groupBlocks + i / perGroup ) *
+                            groupBlocks, dataStart );
+      SysLib.rawread( slice + i % perGroup * inodeSize / 512, inodes );
+      if ( SysLib.bytes2int( inodes, i % perGroup * inodeSize % 512 ) ==
+           length )
+        found++;
+    }
+    return found;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: write \"journal\" and sync......." );
+    SysLib.format( FILES );
+    byte[] buf = new byte[SIZE];
+    for ( int i = 0; i < SIZE; i++ )
+      buf[i] = pattern( i );
+    fd = SysLib.open( "journal", "w+" );
+    size = SysLib.write( fd, buf );
+    SysLib.close( fd );
+    if ( size != SIZE ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.sync( );
+
+    // the file's inode is in the log but not in its home block yet
+    if ( homeInodes( SIZE ) != 0 ) {
+      SysLib.cout( "inode home already (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: append a torn transaction......" );
+    byte[] superblock = new byte[512];
+    SysLib.rawread( 0, superblock );
+    int start = SysLib.bytes2int( superblock, 12 );
+    byte[] header = new byte[512];
+    SysLib.rawread( start, header );
+    int position = SysLib.bytes2int( header, 4 );
+    int sequence = SysLib.bytes2int( header, 8 );
+    int logSize = SysLib.bytes2int( header, 12 );
+
+    // skip the committed transactions, as mounting does
+    byte[] descriptor = new byte[512];
+    for ( int scanned = 0; scanned < logSize; sequence++ ) {
+      SysLib.rawread( start + 1 + position % logSize, descriptor );
+      if ( SysLib.bytes2int( descriptor, 0 ) != DESCRIPTOR_MAGIC ||
+           SysLib.bytes2int( descriptor, 4 ) != sequence )
+        break;
+      int blocks = SysLib.bytes2int( descriptor, 8 ) + 2;
+      position = ( position + blocks ) % logSize;
+      scanned += blocks;
+    }
+    if ( sequence == SysLib.bytes2int( header, 8 ) ) {
+      SysLib.cout( "no committed transaction in the log (wrong)\n" );
+      return false;
+    }
+
+    // the next transaction would zero the superblock, but its commit
+    // block has the wrong checksum, as if the crash tore the write
+    descriptor = new byte[512];
+    SysLib.int2bytes( DESCRIPTOR_MAGIC, descriptor, 0 );
+    SysLib.int2bytes( sequence, descriptor, 4 );
+    SysLib.int2bytes( 1, descriptor, 8 );  // one image
+    SysLib.int2bytes( 0, descriptor, 12 ); // no revokes
+    SysLib.int2bytes( 0, descriptor, 16 ); // of block 0
+    byte[] image = new byte[512];
+    byte[] commit = new byte[512];
+    SysLib.int2bytes( COMMIT_MAGIC, commit, 0 );
+    SysLib.int2bytes( sequence, commit, 4 );
+    SysLib.int2bytes( 0, commit, 8 );
+    SysLib.rawwrite( start + 1 + position % logSize, descriptor );
+    SysLib.rawwrite( start + 1 + ( position + 1 ) % logSize, image );
+    SysLib.rawwrite( start + 1 + ( position + 2 ) % logSize, commit );
+    SysLib.csync( );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: read the superblock............" );
+    byte[] superblock = new byte[512];
+    SysLib.rawread( 0, superblock );
+    int totalInodes = SysLib.bytes2int( superblock, 4 );
+    if ( totalInodes != FILES ) {
+      SysLib.cout( "totalInodes = " + totalInodes + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: read \"journal\" after the crash." );
+    fd = SysLib.open( "journal", "r" );
+    if ( fd < 0 ) {
+      SysLib.cout( "fd = " + fd + " (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[SIZE];
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != SIZE ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < SIZE; i++ )
+      if ( tmpBuf[i] != pattern( i ) ) {
+        SysLib.cout( "buf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+
+    // replaying wrote the inode home
+    if ( homeInodes( SIZE ) != 1 ) {
+      SysLib.cout( "inode not home (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,172 @@
+// Tests a file far past the 136 KB the 11 direct pointers and one indirect
+// block of the block map reach, on a disk formatted with the block tree.
+// Run it twice, rebooting in between:
+//   l TestLargeFile          writes, rewrites, seeks in and deletes the file,
+//                            then leaves a last copy on disk
+//   q, then java Boot again
+//   l TestLargeFile check    reads the last copy back
+// The file is 400 KB, which needs the double indirect tree. A size in bytes
+// can follow the phase: past 8.5 MB the file reaches the triple indirect
+// tree, e.g. l TestLargeFile write 12000000 on java Boot -blocks 30000
+class TestLargeFile extends Thread {
+  final static int FILES = 48;
+  final static int SIZE = 400 * 1000; // 782 blocks and 8 index blocks
+  final String phase;
+  final int fileSize;
+  int fd;
+  int size;
+
+  public TestLargeFile( String args[] ) {
+    phase = args[0];
+    fileSize = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : SIZE;
+  }
+
+  public TestLargeFile( ) {
+    phase = "write";
+    fileSize = SIZE;
+  }
+
+  public void run( ) {
+    if ( phase.equals( "check" ) ) {
+      if ( test5( ) ) // read "large" back after the reboot
+        SysLib.cout("Correct behavior of a large file across a reboot.2\n");
+    }
+    else {
+      if ( test1( ) ) // write and read the file in "large"
+        SysLib.cout("Correct behavior of writing a large file........2\n");
+      if ( test2( ) ) // rewrite "large" with "w"
+        SysLib.cout("Correct behavior of rewriting a large file......2\n");
+      if ( test3( ) ) // seek three quarters into the file and read
+        SysLib.cout("Correct behavior of seeking in a large file.....2\n");
+      if ( test4( ) ) // delete "large", then write it again
+        SysLib.cout("Correct behavior of deleting a large file.......2\n");
+      SysLib.cout( "reboot and run \"l TestLargeFile check" +
+                   ( fileSize != SIZE ? " " + fileSize : "" ) + "\"\n" );
+    }
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // the byte at position i of the version-th copy of the file
+  private static byte pattern( int i, int version ) {
+    return ( byte )( i * ( 2 * version + 1 ) + i / 512 + version );
+  }
+
+  private byte[] contents( int version ) {
+    byte[] buf = new byte[fileSize];
+    for ( int i = 0; i < fileSize; i++ )
+      buf[i] = pattern( i, version );
+    return buf;
+  }
+
+  // writes the version-th copy of "large", opened with mode
+  private boolean write( String mode, int version ) {
+    fd = SysLib.open( "large", mode );
+    size = SysLib.write( fd, contents( version ) );
+    SysLib.close( fd );
+    if ( size != fileSize ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    return true;
+  }
+
+  // reads "large" back, expecting its version-th copy
+  private boolean verify( int version ) {
+    fd = SysLib.open( "large", "r" );
+    if ( fd < 0 ) {
+      SysLib.cout( "fd = " + fd + " (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[fileSize];
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != fileSize ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < fileSize; i++ )
+      if ( tmpBuf[i] != pattern( i, version ) ) {
+        SysLib.cout( "buf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: format and write " + fileSize + " bytes..." );
+    SysLib.format( FILES );
+    if ( !write( "w+", 0 ) || !verify( 0 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: rewrite \"large\" with \"w\"......" );
+    // the old blocks are freed in the background, and the new copy
+    // needs most of them: the allocator must not wait for the freer
+    if ( !write( "w", 1 ) || !verify( 1 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    int target = fileSize / 4 * 3; // 300000 for the default size
+    SysLib.cout( "3: seek to " + target + " and read......." );
+    fd = SysLib.open( "large", "r" );
+    int position = SysLib.seek( fd, target, 0 );
+    if ( position != target ) {
+      SysLib.cout( "seek(fd," + target + ",0)=" + position + " (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    byte[] tmpBuf = new byte[1000];
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != 1000 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < 1000; i++ )
+      if ( tmpBuf[i] != pattern( target + i, 1 ) ) {
+        SysLib.cout( "buf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: delete and write \"large\"......" );
+    if ( SysLib.delete( "large" ) != 0 ) {
+      SysLib.cout( "delete failed (wrong)\n" );
+      return false;
+    }
+    fd = SysLib.open( "large", "r" );
+    if ( fd >= 0 ) {
+      SysLib.cout( "opened after its deletion (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    if ( !write( "w+", 2 ) || !verify( 2 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: read \"large\" after a reboot..." );
+    if ( !verify( 2 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}